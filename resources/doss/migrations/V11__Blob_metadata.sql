@@ -0,0 +1,2 @@
+ALTER TABLE blobs ADD size BIGINT;
+ALTER TABLE blobs ADD created TIMESTAMP;
@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS blobs_container_id ON blobs(container_id);
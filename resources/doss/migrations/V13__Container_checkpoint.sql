@@ -0,0 +1 @@
+ALTER TABLE containers ADD checkpoint BIGINT;
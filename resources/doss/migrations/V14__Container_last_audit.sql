@@ -0,0 +1,4 @@
+ALTER TABLE containers ADD last_audit TIMESTAMP;
+UPDATE containers SET last_audit = (SELECT MAX(time) FROM digest_audits WHERE digest_audits.container_id = containers.container_id);
+CREATE INDEX IF NOT EXISTS containers_state_last_audit ON containers(state, last_audit);
+CREATE INDEX IF NOT EXISTS digest_audits_container_id ON digest_audits(container_id, time);
@@ -0,0 +1,8 @@
+create table if not exists sample_audits (
+        blob_id BIGINT,
+        container_id BIGINT,
+        fs VARCHAR(4000),
+        algorithm VARCHAR(8),
+        time TIMESTAMP,
+        result BOOLEAN);
+create index sample_audits_time on sample_audits(time);
@@ -3,6 +3,7 @@ package doss;
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.List;
 
 public interface BlobStore extends AutoCloseable {
 
@@ -19,6 +20,20 @@ public interface BlobStore extends AutoCloseable {
      */
     Blob get(long blobId) throws NoSuchBlobException, IOException;
 
+    /**
+     * Retrieve several Blobs for reading at once. This is cheaper than calling
+     * {@link #get(long)} for each blob as the lookups are batched.
+     * 
+     * @param blobIds
+     *            storage identifiers for the target blobs
+     * @return the target blobs in the same order as blobIds
+     * @throws IOException
+     *             if an I/O error occurs
+     * @throws NoSuchBlobException
+     *             if any of the blobs do not exist
+     */
+    List<Blob> getAll(long... blobIds) throws NoSuchBlobException, IOException;
+
     /**
      * Retrieve a Blob by DOSSv1 path.
      * 
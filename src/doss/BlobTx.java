@@ -2,6 +2,7 @@ package doss;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 
 import doss.core.ManagedTransaction;
 import doss.core.Named;
@@ -45,6 +46,29 @@ public interface BlobTx extends Named, Transaction {
      */
     Blob put(byte[] bytes) throws IOException;
 
+    /**
+     * Store many new blobs at once. Implementations may write them in
+     * parallel, so the outputs must be safe to write from another thread.
+     *
+     * @param outputs
+     *            things that can be written to a byte channel
+     * @return the new blobs, in the same order as outputs
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    List<Blob> putAll(List<Writable> outputs) throws IOException;
+
+    /**
+     * Store many local files as new blobs.
+     *
+     * @param sources
+     *            paths to the files to store
+     * @return the new blobs, in the same order as sources
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    List<Blob> putAll(Iterable<Path> sources) throws IOException;
+
     /**
      * Commits the transaction, ensuring all blobs written in this transaction
      * are persisted in permanent storage.
@@ -9,11 +9,9 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -21,6 +19,7 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
@@ -31,8 +30,10 @@ import joptsimple.OptionSet;
 
 import org.apache.thrift.transport.TTransportException;
 
+import doss.core.Writables;
 import doss.local.Admin;
 import doss.local.Archiver;
+import doss.local.ArchiverDaemon;
 import doss.local.Scrubber;
 import doss.local.Fsck;
 import doss.local.LocalBlobStore;
@@ -109,11 +110,15 @@ public class Main {
                 LocalBlobStore.init(getDossHome());
             }
         },
-        archiver("[-f] [-n] [-P <threads>]", "Run the archiving daemon") {
+        archiver("[-f] [-n] [-V] [-P <threads>] [-r <deletes/sec>] [-d [-i <seconds>] [-s <MB>]]", "Run the archiving daemon") {
             @Override
             void execute(Arguments args) throws IOException {
                 try (BlobStore bs = openBlobStore()) {
                     boolean forceSeal = false;
+                    boolean daemon = false;
+                    int threads = 1;
+                    Long pollSeconds = null;
+                    Long stagingThreshold = null;
                     Archiver archiver = new Archiver(bs);
                     for (; !args.isEmpty(); args = args.rest()) {
                         switch (args.first()) {
@@ -122,20 +127,73 @@ public class Main {
                                 break;
                             case "-P":
                                 args = args.rest();
-                                archiver.setThreads(Integer.parseInt(args.first()));
+                                threads = Integer.parseInt(args.first());
+                                archiver.setThreads(threads);
+                                break;
+                            case "-r":
+                                args = args.rest();
+                                archiver.setCleanupRate(Integer.parseInt(args.first()));
+                                break;
+                            case "-d":
+                                daemon = true;
+                                break;
+                            case "-i":
+                                args = args.rest();
+                                pollSeconds = Long.parseLong(args.first());
+                                break;
+                            case "-s":
+                                args = args.rest();
+                                stagingThreshold = Long.parseLong(args.first()) * 1024 * 1024;
                                 break;
                             case "-n":
                                 archiver.setSkipCleanup(true);
                                 break;
+                            case "-V":
+                                archiver.setVerify(true);
+                                break;
                             default:
                                 throw new IllegalArgumentException("Unrecognised option: " + args.first());
                         }
                     }
-                    archiver.run(forceSeal);
+                    if (daemon) {
+                        runDaemon(new ArchiverDaemon(archiver, threads), forceSeal,
+                                pollSeconds, stagingThreshold);
+                    } else {
+                        archiver.run(forceSeal);
+                    }
+                }
+            }
+
+            /**
+             * Runs the daemon until the JVM is asked to shut down, then lets it
+             * finish the containers it's already writing.
+             */
+            private void runDaemon(final ArchiverDaemon daemon, boolean forceSeal,
+                    Long pollSeconds, Long stagingThreshold) {
+                if (pollSeconds != null) {
+                    daemon.setPollInterval(pollSeconds * 1000);
+                }
+                if (forceSeal) {
+                    daemon.setStagingThreshold(0);
+                } else if (stagingThreshold != null) {
+                    daemon.setStagingThreshold(stagingThreshold);
                 }
+                final Thread daemonThread = Thread.currentThread();
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        daemon.stop();
+                        try {
+                            daemonThread.join();
+                        } catch (InterruptedException e) {
+                            // exit anyway
+                        }
+                    }
+                });
+                daemon.run();
             }
         },
-        scrubber("[-i <containerId> [-n]] [-F] [[-c <# of containers>] [-m <days>] [-P <threads>] [-n]] [-L <containerId>]", "Run the Scrubber") {
+        scrubber("[-i <containerId> [-n]] [-F] [[-c <# of containers>] [-m <days>] [-P <threads>] [-R <readers per fs>] [-r <MB/sec>] [-n]] [-s <blobs per hour> [-r <MB/sec>] [-n]] [-L <containerId>]", "Run the Scrubber") {
             @Override
             void execute(Arguments args) throws IOException {
                 try (BlobStore bs = openBlobStore()) {
@@ -168,6 +226,18 @@ public class Main {
                                 args = args.rest();
                                 scrubber.setShowLastAudit(Long.parseLong(args.first()));
                                 break;
+                            case "-r":
+                                args = args.rest();
+                                scrubber.setBytesPerSecond(Long.parseLong(args.first()) * 1024 * 1024);
+                                break;
+                            case "-R":
+                                args = args.rest();
+                                scrubber.setReadersPerFilesystem(Integer.parseInt(args.first()));
+                                break;
+                            case "-s":
+                                args = args.rest();
+                                scrubber.setSampleRate(Integer.parseInt(args.first()));
+                                break;
                             default:
                                 throw new IllegalArgumentException("Unrecognised option: " + args.first());
                         }
@@ -176,18 +246,30 @@ public class Main {
                 }
             }
         },
-        bench("", "Run a basic benchmark (beware: will create and delete blobs)") {
+        bench("[count]", "Run a basic benchmark (beware: will create and delete blobs)") {
 
             @Override
             void execute(Arguments args) throws IOException {
+                int count = args.isEmpty() ? 1000 : Integer.parseInt(args.first());
                 byte[] data = new byte[2000];
+                List<Writable> writables = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    writables.add(Writables.wrap(data));
+                }
                 try (BlobStore bs = openBlobStore()) {
                     try (BlobTx tx = bs.begin()) {
                         long start = System.currentTimeMillis();
-                        for (int i = 0; i < 1000; i++) {
+                        for (int i = 0; i < count; i++) {
                             tx.put(data);
                         }
-                        System.out.println("Created 1000 blobs in "
+                        System.out.println("Created " + count + " blobs with put in "
+                                + (System.currentTimeMillis() - start) + "ms");
+                        tx.rollback();
+                    }
+                    try (BlobTx tx = bs.begin()) {
+                        long start = System.currentTimeMillis();
+                        tx.putAll(writables);
+                        System.out.println("Created " + count + " blobs with putAll in "
                                 + (System.currentTimeMillis() - start) + "ms");
                         tx.rollback();
                     }
@@ -200,16 +282,8 @@ public class Main {
             void outputBlob(String blobId) throws IOException {
                 try (BlobStore bs = openBlobStore()) {
                     Blob blob = bs.get(Long.parseLong(blobId));
-                    ReadableByteChannel channel = blob.openChannel();
-                    WritableByteChannel dest = Channels.newChannel(out);
-
-                    final ByteBuffer buffer = ByteBuffer
-                            .allocateDirect(16 * 1024);
-
-                    while (channel.read(buffer) != -1) {
-                        buffer.flip();
-                        dest.write(buffer);
-                        buffer.compact();
+                    try (ReadableByteChannel channel = blob.openChannel()) {
+                        Writables.copy(channel, Channels.newChannel(out));
                     }
                 }
             }
@@ -244,14 +318,27 @@ public class Main {
                 digestBlob(args.first(), args.rest().first());
             }
         },
-        fsck("[-v]", "Run sanity checks") {
+        fsck("[-v] [-r] [-P <threads>]", "Run sanity checks, -r resumes an interrupted run") {
 
             @Override
             void execute(Arguments args) throws IOException {
                 try (BlobStore bs = openBlobStore()) {
                     Fsck fsck = new Fsck((LocalBlobStore) bs);
-                    if (!args.isEmpty() && args.first().equals("-v")) {
-                        fsck.setVerbose(true);
+                    for (; !args.isEmpty(); args = args.rest()) {
+                        switch (args.first()) {
+                            case "-v":
+                                fsck.setVerbose(true);
+                                break;
+                            case "-r":
+                                fsck.setResume(true);
+                                break;
+                            case "-P":
+                                args = args.rest();
+                                fsck.setThreads(Integer.parseInt(args.first()));
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unrecognised option: " + args.first());
+                        }
                     }
                     fsck.run();
                 }
@@ -263,15 +350,15 @@ public class Main {
 
                 try (BlobStore bs = openBlobStore()) {
                     Blob blob = bs.get(Long.parseLong(blobId));
-                    ReadableByteChannel channel = blob.openChannel();
-                    FileChannel dest = FileChannel.open(Paths.get(blobId),
-                            StandardOpenOption.WRITE,
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.TRUNCATE_EXISTING);
-                    long bytesTransferred = dest.transferFrom(channel, 0,
-                            Long.MAX_VALUE);
-                    out.println("Got " + bytesTransferred + "B of "
-                            + blob.size() + "B from blob " + blobId);
+                    try (ReadableByteChannel channel = blob.openChannel();
+                            FileChannel dest = FileChannel.open(Paths.get(blobId),
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long bytesTransferred = Writables.copy(channel, dest);
+                        out.println("Got " + bytesTransferred + "B of "
+                                + blob.size() + "B from blob " + blobId);
+                    }
                 }
             }
 
@@ -379,13 +466,29 @@ public class Main {
                 }
             }
         },
-        containers("", "Lists all containers") {
+        containers("[-r] [<containerId ...>]",
+                "Lists all containers, the blobs in the given containers or with -r rebuilds their blob offsets") {
 
             @Override
             void execute(Arguments args) throws IOException {
                 try (BlobStore bs = openBlobStore()) {
                     Admin admin = new Admin((LocalBlobStore) bs);
-                    admin.listContainers();
+                    boolean rebuild = false;
+                    if (!args.isEmpty() && args.first().equals("-r")) {
+                        rebuild = true;
+                        args = args.rest();
+                    }
+                    if (args.isEmpty()) {
+                        admin.listContainers();
+                    }
+                    for (String containerId : args) {
+                        if (rebuild) {
+                            out.println("Rebuilt " + admin.rebuildBlobOffsets(Long.parseLong(containerId))
+                                    + " blob offsets for container " + containerId);
+                        } else {
+                            admin.listContainer(Long.parseLong(containerId));
+                        }
+                    }
                 }
             }
         },
@@ -4,11 +4,14 @@ public class NoSuchBlobException extends BlobException {
 
     private static final long serialVersionUID = 4400283547656303379L;
 
+    private Long blobId;
+
     public NoSuchBlobException() {
     }
 
     public NoSuchBlobException(Long blobId) {
         super(blobId.toString());
+        this.blobId = blobId;
     }
 
     public NoSuchBlobException(Throwable cause) {
@@ -24,4 +27,10 @@ public class NoSuchBlobException extends BlobException {
         super(message, cause, enableSuppression, writableStackTrace);
     }
 
+    /**
+     * Returns the id of the missing blob, if known.
+     */
+    public Long getBlobId() {
+        return blobId;
+    }
 }
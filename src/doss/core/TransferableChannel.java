@@ -0,0 +1,23 @@
+package doss.core;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel backed by a file (or part of one) that can hand its contents
+ * straight to another channel, so the kernel can move the bytes with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}
+ * rather than them being copied through a buffer in user space.
+ */
+public interface TransferableChannel extends ReadableByteChannel {
+
+    /**
+     * Transfers up to count bytes from this channel's position to the
+     * target and advances the position by the number transferred.
+     *
+     * @return the number of bytes transferred, possibly zero, or -1 if the
+     *         channel has reached end-of-stream
+     */
+    long transferTo(long count, WritableByteChannel target) throws IOException;
+}
@@ -2,6 +2,7 @@ package doss.core;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 
 import doss.Blob;
 import doss.BlobStore;
@@ -22,6 +23,12 @@ public abstract class WrappedBlobStore implements BlobStore {
         return wrapped.get(blobId);
     }
 
+    @Override
+    public List<Blob> getAll(long... blobIds) throws NoSuchBlobException,
+            IOException {
+        return wrapped.getAll(blobIds);
+    }
+
     @Override
     public BlobTx begin() {
         return wrapped.begin();
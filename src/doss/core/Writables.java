@@ -11,6 +11,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 
 import doss.Blob;
 import doss.SizedWritable;
@@ -40,6 +42,14 @@ public class Writables {
         };
     }
 
+    public static List<Writable> wrapAll(Iterable<Path> paths) {
+        List<Writable> writables = new ArrayList<>();
+        for (Path path : paths) {
+            writables.add(wrap(path));
+        }
+        return writables;
+    }
+
     public static Writable wrap(final byte[] bytes) {
         return new SizedWritable() {
             @Override
@@ -66,9 +76,21 @@ public class Writables {
                 + writable.getClass());
     }
 
-    private static long copy(ReadableByteChannel in, WritableByteChannel out)
+    /**
+     * Copies everything from in to out. When in is backed by a file the bytes
+     * are transferred by the kernel rather than copied through a buffer.
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out)
             throws IOException {
-        if (in instanceof FileChannel) {
+        if (in instanceof TransferableChannel) {
+            TransferableChannel tc = (TransferableChannel) in;
+            long copied = 0;
+            for (long n = tc.transferTo(Long.MAX_VALUE, out); n != -1; n = tc
+                    .transferTo(Long.MAX_VALUE, out)) {
+                copied += n;
+            }
+            return copied;
+        } else if (in instanceof FileChannel) {
             FileChannel infc = (FileChannel) in;
             long size = infc.size();
             long copied = 0;
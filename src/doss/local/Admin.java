@@ -1,6 +1,11 @@
 package doss.local;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import doss.Blob;
 
 import doss.local.Database.ContainerRecord;
 
@@ -22,6 +27,43 @@ public class Admin {
         }
     }
 
+    /**
+     * Lists the blobs in an archived container, from its index if it has one.
+     */
+    public void listContainer(long containerId) throws IOException {
+        System.out.format("%12s %12s %12s\n", "Blob", "Offset", "Size");
+        try (TarContainer tar = openTar(containerId)) {
+            for (Blob blob : tar) {
+                System.out.format("%12d %12d %12d\n", blob.id(),
+                        ((TarBlob) blob).offset() - TarContainer.HEADER_LENGTH, blob.size());
+            }
+        }
+    }
+
+    /**
+     * Resets the offsets recorded in the database for the blobs in an
+     * archived container to where they are in the tar, reading them from its
+     * index if it has one.
+     *
+     * @return the number of blobs updated
+     */
+    public int rebuildBlobOffsets(long containerId) throws IOException {
+        int count = 0;
+        try (TarContainer tar = openTar(containerId)) {
+            for (Blob blob : tar) {
+                count += blobStore.db.setBlobOffset(blob.id(),
+                        ((TarBlob) blob).offset() - TarContainer.HEADER_LENGTH);
+                blobStore.locationCache.invalidate(blob.id());
+            }
+        }
+        return count;
+    }
+
+    private TarContainer openTar(long containerId) throws IOException {
+        Path path = blobStore.tarPath(blobStore.masterRoots.get(0), containerId);
+        return new TarContainer(containerId, path, FileChannel.open(path, StandardOpenOption.READ));
+    }
+
     public void sealContainer(long containerId) throws ContainerInUseException {
         ContainerRecord c = blobStore.db.findContainer(containerId);
         if (c.state() != Database.CNT_OPEN) {
@@ -12,26 +12,42 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 
 import doss.Blob;
 import doss.BlobStore;
 import doss.core.Writables;
+import doss.local.Database.UnassignedBlob;
 
 public class Archiver {
 
+    static final long CHECKPOINT_INTERVAL = 256L * 1024 * 1024;
+    static final int CLEANUP_BATCH_SIZE = 1000;
     private final static Logger logger = Logger.getLogger(Archiver.class
             .getName());
     private final LocalBlobStore blobStore;
-    private final Database db;
-    private final long maxContainerSize = 10L * 1024 * 1024 * 1024;
-    private boolean skipCleanup = false;
+    final Database db;
+    private long maxContainerSize;
+    private int maxContainerBlobs;
+    private long directThreshold;
+    boolean skipCleanup = false;
     private int threads = 0;
+    private boolean verify = false;
+    private PackingStrategy packingStrategy = StandardPacking.BY_TX;
+    private long checkpointInterval = CHECKPOINT_INTERVAL;
+    private int cleanupThreads = 4;
+    private Throttle cleanupThrottle = new Throttle(0);
 
     public Archiver(BlobStore blobStore) {
         if (!(blobStore instanceof LocalBlobStore)) {
@@ -40,6 +56,9 @@ public class Archiver {
         }
         this.blobStore = (LocalBlobStore) blobStore;
         db = this.blobStore.db;
+        maxContainerSize = this.blobStore.maxContainerSize;
+        maxContainerBlobs = this.blobStore.maxContainerBlobs;
+        directThreshold = this.blobStore.directThreshold;
         if (this.blobStore.masterRoots.isEmpty()) {
             throw new IllegalArgumentException(
                     "archiver can only be run on a blobstore with at least one master filesystem configured");
@@ -58,26 +77,109 @@ public class Archiver {
         }
     }
 
-    //      * For each blob:
-    //        * If blob is part of an uncommitted transaction, skip it.
-    //        * If blob is already part of a container, skip it.
-    //        * Find existing or create container state="open"
-    //        * Add container_id, blob_id to container_blobs table.
-    //        * If container_size > THRESHOLD:
-    //          * Update current_container set state="selected"
+    //      * Fetch the id and size of every committed blob not yet in a container
+    //      * Give any blob over the direct threshold a sealed container of its own
+    //      * Group the rest into runs to keep together using the packing strategy
+    //      * Pack runs in order into the open container, or new ones, until
+    //        each is over THRESHOLD. If a run would straddle two containers but
+    //        fits in one, seal the current container early.
+    //      * For each container:
+    //        * Set container_id on all its new blobs in one batch
+    //        * If container_size > THRESHOLD or it has the maximum number of blobs:
+    //          * Update container set state="sealed"
     public void selectionPhase() throws IOException {
-        List<Long> blobIds = db.findCommittedButUnassignedBlobs();
-        logger.info("Selection phase: found " + blobIds.size() + " candidate blobs for archiving");
-        for (long blobId : blobIds) {
-            Blob blob = blobStore.get(blobId);
-            Long containerId = db.findAnOpenContainer();
+        List<UnassignedBlob> candidates = db.findCommittedButUnassignedBlobSizes();
+        logger.info("Selection phase: found " + candidates.size() + " candidate blobs for archiving");
+        Packer packer = new Packer();
+        for (List<UnassignedBlob> run : packingStrategy.runs(candidates)) {
+            List<Long> blobIds = new ArrayList<>(run.size());
+            List<Long> sizes = new ArrayList<>(run.size());
+            long sizeBeforeLast = 0;
+            for (UnassignedBlob candidate : run) {
+                long size = candidate.size() != null ? candidate.size()
+                        : Files.size(blobStore.stagingPath(candidate.blobId()));
+                if (size >= directThreshold) {
+                    packer.direct(candidate.blobId(), size);
+                } else {
+                    blobIds.add(candidate.blobId());
+                    sizes.add(size);
+                    sizeBeforeLast += size;
+                }
+            }
+            if (blobIds.isEmpty()) {
+                continue;
+            }
+            // a container is only sealed once it's over the size limit, so the
+            // run stays together as long as that isn't passed before its last blob
+            sizeBeforeLast -= sizes.get(sizes.size() - 1);
+            if (packer.containerCount > 0 && !packer.fits(sizeBeforeLast, blobIds.size())
+                    && sizeBeforeLast <= maxContainerSize && blobIds.size() <= maxContainerBlobs) {
+                packer.seal();
+            }
+            for (int i = 0; i < blobIds.size(); i++) {
+                packer.add(blobIds.get(i), sizes.get(i));
+            }
+        }
+        packer.flush();
+    }
+
+    /**
+     * Fills containers during the selection phase, batching up the blobs
+     * assigned to the current container.
+     */
+    private class Packer {
+        Long containerId = db.findAnOpenContainer();
+        long containerSize = containerId == null ? 0 : db.getContainerSize(containerId);
+        int containerCount = containerId == null ? 0 : db.countBlobsByContainer(containerId);
+        final List<Long> batch = new ArrayList<>();
+        long batchSize = 0;
+
+        void add(long blobId, long size) {
             if (containerId == null) {
                 containerId = db.createContainer();
+                containerSize = 0;
+                containerCount = 0;
+            }
+            batch.add(blobId);
+            batchSize += size;
+            containerSize += size;
+            containerCount++;
+            if (containerSize > maxContainerSize || containerCount >= maxContainerBlobs) {
+                seal();
             }
-            db.addBlobToContainer(blobId, containerId, blob.size());
-            long containerSize = db.getContainerSize(containerId);
-            if (containerSize > maxContainerSize) {
-                db.updateContainerState(containerId, Database.CNT_SEALED);
+        }
+
+        /**
+         * Whether the current container can take count more blobs without
+         * being sealed before the last of them.
+         */
+        boolean fits(long sizeBeforeLast, int count) {
+            return containerSize + sizeBeforeLast <= maxContainerSize
+                    && containerCount + count <= maxContainerBlobs;
+        }
+
+        /**
+         * Gives a blob a sealed container all of its own.
+         */
+        void direct(long blobId, long size) {
+            long directId = db.createContainer();
+            db.addBlobsToContainer(Collections.singletonList(blobId), directId, size);
+            db.updateContainerState(directId, Database.CNT_SEALED);
+        }
+
+        void seal() {
+            flush();
+            db.updateContainerState(containerId, Database.CNT_SEALED);
+            containerId = null;
+            containerSize = 0;
+            containerCount = 0;
+        }
+
+        void flush() {
+            if (!batch.isEmpty()) {
+                db.addBlobsToContainer(batch, containerId, batchSize);
+                batch.clear();
+                batchSize = 0;
             }
         }
     }
@@ -87,10 +189,14 @@ public class Archiver {
     }
 
     //      * For each container where state="selected":
-    //        * Create container file in incoming dir each fs (overwrite and truncate if already exists - crash cleanup)
-    //        * Add each blob to tar file
+    //        * Create container file in incoming dir each fs, or if a crashed
+    //          previous attempt checkpointed, truncate to the checkpoint and resume
+    //        * Add each blob to every tar file, digesting blobs and tars as they're written
+    //        * Every CHECKPOINT_INTERVAL bytes fsync the tar files and record
+    //          how far they've got
     //        * fsync tar file
-    //        * Calculate digest from each fs (if not matching: delete file and retry)
+    //        * Write an index of the blobs' offsets, sizes and digests next to it
+    //        * Optionally read back each tar and verify the digests
     //        * Update container set state="written"
     //
     public void dataCopyPhase() throws IOException {
@@ -128,135 +234,185 @@ public class Archiver {
         }
     }
 
-    private void writeContainer(long containerId) throws IOException {
-        List<TarContainer> tars = new ArrayList<>();
+    private long writeContainer(long containerId) throws IOException {
+        // the same spelling put recorded digests under, so they're not duplicated
+        String algorithm = Digests.canonicalizeAlgorithm(blobStore.getPreferredAlgorithm());
+        List<FileChannel> replicas = new ArrayList<>();
+        String containerDigest;
+        long containerSize;
 
         logger.info("Writing container " + containerId);
         try {
-            for (Path fsRoot : blobStore.masterRoots) {
-                Path tarPath = incomingPath(fsRoot, containerId);
-                Files.deleteIfExists(tarPath); // remove any debris from a crashed previous attempt
-                FileChannel channel = FileChannel.open(tarPath, CREATE_NEW, WRITE);
-                tars.add(new TarContainer(containerId, tarPath, channel));
-            }
-
-            List<Long> blobIds;
-            synchronized (db) {
-                blobIds = db.findBlobsByContainer(containerId);
-            }
-            logger.info("Writing " + blobIds.size() + " blobs to container " + containerId);
-            for (long blobId : blobIds) {
-                Blob blob;
-                synchronized (db) {
-                    blob = blobStore.get(blobId);
+            long checkpoint = openReplicas(containerId, replicas);
+            try (TarFanOutWriter writer = new TarFanOutWriter(containerId, replicas, algorithm)) {
+                List<Long> blobIds = db.findBlobsByContainer(containerId);
+                if (checkpoint > 0) {
+                    writer.resume(replicas.get(0), checkpoint);
+                    blobIds = blobIds.subList(db.countBlobsBeforeCheckpoint(containerId, checkpoint),
+                            blobIds.size());
+                    logger.info("Resuming container " + containerId + " from checkpoint at "
+                            + checkpoint + " bytes");
                 }
-                Long offset = null;
-                for (TarContainer container : tars) {
+                logger.info("Writing " + blobIds.size() + " blobs to container " + containerId);
+                for (long blobId : blobIds) {
+                    Blob blob = blobStore.get(blobId);
                     logger.fine("Appending blob " + blobId + " (" + blob.size() + " bytes) to "
-                            + container.path());
-                    offset = container.put(blobId, Writables.wrap(blob));
-                }
-                synchronized (db) {
-                    db.setBlobOffset(blobId, offset);
+                            + replicas.size() + " replicas of container " + containerId);
+                    TarFanOutWriter.Record record = writer.put(blobId, Writables.wrap(blob));
+                    checkBlobDigest(blobId, algorithm, record.digest);
+                    // record the size and mtime as stored in the tar header (which
+                    // only has one second resolution) so reads needn't parse it
+                    long created = blob.created().toMillis() / 1000 * 1000;
+                    db.setBlobOffsetAndMetadata(blobId, record.offset, record.size, new Date(created));
+                    blobStore.locationCache.invalidate(blobId);
+                    if (writer.size() - checkpoint >= checkpointInterval) {
+                        checkpoint = writer.checkpoint();
+                        db.setContainerCheckpoint(containerId, checkpoint);
+                    }
                 }
+                containerDigest = writer.finish();
+                containerSize = writer.size();
             }
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         } finally {
-            for (Container tar : tars) {
-                tar.fsync();
-                tar.close();
+            for (FileChannel replica : replicas) {
+                replica.close();
             }
         }
 
-        // verify all blobs exist and have the right contents
+        ContainerIndex index = new ContainerIndex(containerId, algorithm,
+                db.findIndexEntries(containerId, algorithm));
         for (Path fsRoot : blobStore.masterRoots) {
-            verifyContainerContents(containerId, fsRoot);
+            index.write(ContainerIndex.pathFor(incomingPath(fsRoot, containerId)));
         }
 
-        // calculate whole container digests and compare to each other
-        String lastDigest = null;
-        for (Path fsRoot : blobStore.masterRoots) {
-            Path path = incomingPath(fsRoot, containerId);
-            logger.info("Calculating digest for " + path);
-            try (FileChannel chan = FileChannel.open(path, READ)) {
-                String digest = Digests.calculate(blobStore.getPreferredAlgorithm(), chan);
-                if (lastDigest != null && !digest.equals(lastDigest)) {
-                    throw new IOException("tar digests do not match. Expected " + lastDigest
-                            + " but got " + digest + " for " + path);
-                }
-                lastDigest = digest;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+        if (verify) {
+            for (Path fsRoot : blobStore.masterRoots) {
+                verifyContainerContents(containerId, fsRoot, containerDigest);
             }
         }
-        synchronized (db) {
-            db.insertContainerDigest(containerId,blobStore.getPreferredAlgorithm(),lastDigest);
 
-        }
-        // all ok, do the final move
+        db.insertContainerDigest(containerId, algorithm, containerDigest);
+        // all ok, do the final move, index first so a container never lacks one
         for (Path fsRoot : blobStore.masterRoots) {
             Path dest = blobStore.tarPath(fsRoot, containerId);
             Files.createDirectories(dest.getParent());
+            Files.move(ContainerIndex.pathFor(incomingPath(fsRoot, containerId)),
+                    ContainerIndex.pathFor(dest), StandardCopyOption.ATOMIC_MOVE);
             Files.move(incomingPath(fsRoot, containerId), dest, StandardCopyOption.ATOMIC_MOVE);
         }
-        synchronized (db) {
-            db.updateContainerState(containerId, Database.CNT_WRITTEN);
-        }
+        db.updateContainerState(containerId, Database.CNT_WRITTEN);
         logger.info("Finished data copy for container " + containerId);
+        return containerSize;
     }
 
-    private void verifyContainerContents(long containerId, Path fsRoot) throws IOException {
-        Path tarPath = incomingPath(fsRoot, containerId);
-        logger.info("Verifying individual records in " + tarPath);
-        try (TarContainer tar = new TarContainer(containerId, tarPath, FileChannel.open(
-                tarPath, READ))) {
-            Iterator<Blob> it = tar.iterator();
-            List<Long> blobIds;
-            synchronized (db) {
-                blobIds = db.findBlobsByContainer(containerId);
-            }
-            for (long blobId : blobIds) {
-                Blob stagingBlob;
-                synchronized (db) {
-                    stagingBlob = blobStore.get(blobId);
-                }
-                if (!it.hasNext()) {
-                    throw new IOException("tar ended prematurely");
-                }
-                Blob tarBlob = it.next();
-                if (stagingBlob.id() != tarBlob.id()) {
-                    throw new IOException("expected blob " + stagingBlob.id()
-                            + " but found " + tarBlob.id());
-                }
-                if (stagingBlob.size() != tarBlob.size()) {
-                    throw new IOException("blob " + tarBlob.id() + " expected size "
-                            + stagingBlob.size()
-                            + " but found " + tarBlob.size());
-                }
-                String tarDigest = Digests.calculate(blobStore.getPreferredAlgorithm(), tarBlob);
-                String stagingDigest = stagingBlob.digest(blobStore.getPreferredAlgorithm());
-                if (!tarDigest.equals(stagingDigest)) {
-                    throw new IOException("copy verify failed for blob " + tarBlob.id()
-                            + " expected " + blobStore.getPreferredAlgorithm() + " " + stagingDigest + " but tar contains " + tarDigest);
-                }
-                synchronized (db) {
-                    try {
-                        db.insertDigest(tarBlob.id(),blobStore.getPreferredAlgorithm(),tarDigest);
-                    } catch (UnableToExecuteStatementException e) {
-                        // already a a digest with this algorithm
-                    }
+    /**
+     * Opens the incoming replicas of a container for writing. If an earlier
+     * attempt checkpointed and every replica got that far they're truncated
+     * back to the checkpoint so writing can carry on from there, otherwise
+     * any debris is removed and they're started afresh.
+     *
+     * @return the checkpoint to resume from, or 0 to start from the beginning
+     */
+    private long openReplicas(long containerId, List<FileChannel> replicas) throws IOException {
+        Long checkpoint = db.getContainerCheckpoint(containerId);
+        if (checkpoint != null) {
+            for (Path fsRoot : blobStore.masterRoots) {
+                Path tarPath = incomingPath(fsRoot, containerId);
+                if (!Files.exists(tarPath) || Files.size(tarPath) < checkpoint) {
+                    logger.warning("Can't resume " + tarPath + " from checkpoint at "
+                            + checkpoint + " bytes, starting again");
+                    checkpoint = null;
+                    break;
                 }
             }
-            if (it.hasNext()) {
-                throw new IOException(tarPath + " has more records than expected");
+        }
+        if (checkpoint == null) {
+            db.setContainerCheckpoint(containerId, null);
+            for (Path fsRoot : blobStore.masterRoots) {
+                Path tarPath = incomingPath(fsRoot, containerId);
+                Files.deleteIfExists(tarPath);
+                replicas.add(FileChannel.open(tarPath, CREATE_NEW, WRITE));
             }
+            return 0;
+        }
+        for (Path fsRoot : blobStore.masterRoots) {
+            FileChannel replica = FileChannel.open(incomingPath(fsRoot, containerId), READ, WRITE);
+            replicas.add(replica);
+            replica.truncate(checkpoint);
+            replica.position(checkpoint);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Compares the digest of a blob as it was copied into the container with
+     * the one calculated when it was put, or records it if there wasn't one.
+     */
+    private void checkBlobDigest(long blobId, String algorithm, String digest)
+            throws IOException {
+        String putDigest = db.findDigest(blobId, algorithm);
+        if (putDigest == null) {
+            db.insertDigest(blobId, algorithm, digest);
+        } else if (!putDigest.equals(digest)) {
+            throw new IOException("copy verify failed for blob " + blobId + " expected "
+                    + algorithm + " " + putDigest + " but read " + digest + " from staging");
+        }
+    }
+
+    /**
+     * Reads back a written container checking it holds the expected blobs
+     * with the digests calculated while writing it.
+     */
+    private void verifyContainerContents(long containerId, Path fsRoot, String containerDigest)
+            throws IOException {
+        String algorithm = Digests.canonicalizeAlgorithm(blobStore.getPreferredAlgorithm());
+        Path tarPath = incomingPath(fsRoot, containerId);
+        logger.info("Verifying " + tarPath + " and its individual records");
+        TarDigester digester;
+        try (FileChannel chan = FileChannel.open(tarPath, READ)) {
+            digester = TarDigester.digest(algorithm, chan);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+        if (digester.isCorrupt()) {
+            throw new IOException(tarPath + " has a damaged record header after "
+                    + digester.records().size() + " records");
+        }
+        Iterator<TarDigester.Record> it = digester.records().iterator();
+        for (long blobId : db.findBlobsByContainer(containerId)) {
+            if (!it.hasNext()) {
+                throw new IOException("tar ended prematurely");
+            }
+            TarDigester.Record record = it.next();
+            if (blobId != record.blobId) {
+                throw new IOException("expected blob " + blobId
+                        + " but found " + record.blobId);
+            }
+            String expected = db.findDigest(blobId, algorithm);
+            if (!record.digest.equals(expected)) {
+                throw new IOException("copy verify failed for blob " + blobId
+                        + " expected " + algorithm + " " + expected + " but tar contains "
+                        + record.digest);
+            }
+        }
+        if (it.hasNext()) {
+            throw new IOException(tarPath + " has more records than expected");
+        }
+        if (!digester.isComplete()) {
+            throw new IOException(tarPath + " has no end of archive marker");
+        }
+        String digest = digester.containerDigest();
+        if (!digest.equals(containerDigest)) {
+            throw new IOException("tar digest mismatch. Expected " + containerDigest
+                    + " but got " + digest + " for " + tarPath);
+        }
     }
 
     //      * For each container where state="written":
-    //        * For each blob in container:
-    //          * Delete blob from staging area.
+    //        * Delete its blobs from staging in parallel, rate limited
+    //        * Prune directories left empty, deepest first, trying each once
     //        * Update container set state="archived"
 
     public void cleanupPhase() throws IOException {
@@ -264,35 +420,183 @@ public class Archiver {
         logger.info("Cleanup phase: found " + containerIds.size()
                 + " written containers ready to be cleaned up");
         for (long containerId : containerIds) {
-            List<Long> blobIds = db.findBlobsByContainer(containerId);
-            for (long blobId : blobIds) {
-                Path blobPath = blobStore.stagingPath(blobId);
-                logger.info("Deleting " + blobPath);
-                Files.deleteIfExists(blobPath);
-                deleteEmptyDirs(blobPath.getParent(), blobStore.stagingRoot.resolve("data"));
-            }
-            db.updateContainerState(containerId, Database.CNT_ARCHIVED);
+            cleanupContainer(containerId);
         }
     }
 
+    void cleanupContainer(long containerId) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Long> blobIds = db.findBlobsByContainer(containerId);
+        final Set<Path> dirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        final AtomicInteger deleted = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < blobIds.size(); i += CLEANUP_BATCH_SIZE) {
+            final List<Long> batch = blobIds.subList(i,
+                    Math.min(i + CLEANUP_BATCH_SIZE, blobIds.size()));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (long blobId : batch) {
+                        cleanupThrottle.acquire(1);
+                        Path blobPath = blobStore.stagingPath(blobId);
+                        logger.fine("Deleting " + blobPath);
+                        if (Files.deleteIfExists(blobPath)) {
+                            deleted.incrementAndGet();
+                        }
+                        dirs.add(blobPath.getParent());
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, cleanupThreads);
+        int pruned = pruneEmptyDirs(dirs, blobStore.stagingRoot.resolve("data"));
+        db.updateContainerState(containerId, Database.CNT_ARCHIVED);
+        logger.info("Cleaned up container " + containerId + ": deleted " + deleted + " of "
+                + blobIds.size() + " staged blobs and " + pruned + " empty directories in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
     /**
-     * Walk upwards from path to root deleting empty directories.
+     * Takes a container the rest of the way from sealed or written to
+     * archived.
+     *
+     * @return the number of bytes written to each replica, 0 if the container
+     *         had already been written
      */
-    private void deleteEmptyDirs(Path path, Path root) throws IOException {
+    long archiveContainer(long containerId, int state) throws IOException {
+        long size = 0;
+        if (state == Database.CNT_SEALED) {
+            size = writeContainer(containerId);
+        }
+        if (!skipCleanup) {
+            cleanupContainer(containerId);
+        }
+        return size;
+    }
+
+    /**
+     * Runs tasks on a pool of threads (or this one if threads is 0) and waits
+     * for them all, rethrowing the first failure.
+     */
+    private static void runAll(List<Callable<Void>> tasks, int threads) throws IOException {
+        if (threads == 0 || tasks.size() < 2) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
         try {
-            while (path.startsWith(root) && !path.equals(root) && Files.isDirectory(path)) {
-                Files.deleteIfExists(path);
-                path = path.getParent();
+            for (Future<Void> future : threadPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("parallel cleanup interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    /**
+     * Deletes any of the given directories that are empty along with any
+     * ancestors (below root) that become empty as a result. Children are
+     * always tried before their parents so each directory is only tried once.
+     *
+     * @return the number of directories deleted
+     */
+    static int pruneEmptyDirs(Collection<Path> dirs, Path root) throws IOException {
+        TreeSet<Path> pending = new TreeSet<>(new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                int cmp = Integer.compare(b.getNameCount(), a.getNameCount());
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        });
+        pending.addAll(dirs);
+        int pruned = 0;
+        for (Path dir = pending.pollFirst(); dir != null; dir = pending.pollFirst()) {
+            if (!dir.startsWith(root) || dir.equals(root)) {
+                continue;
+            }
+            try {
+                if (Files.deleteIfExists(dir)) {
+                    pruned++;
+                    pending.add(dir.getParent());
+                }
+            } catch (DirectoryNotEmptyException e) {
+                // still has other blobs in it
             }
-        } catch (DirectoryNotEmptyException e) {
-            // we're done
         }
+        return pruned;
+    }
+
+    public void setMaxContainerSize(long maxContainerSize) {
+        this.maxContainerSize = maxContainerSize;
+    }
+
+    public void setMaxContainerBlobs(int maxContainerBlobs) {
+        this.maxContainerBlobs = maxContainerBlobs;
+    }
+
+    /**
+     * Blobs at least this big are put in a container of their own.
+     */
+    public void setDirectThreshold(long directThreshold) {
+        this.directThreshold = directThreshold;
+    }
+
+    /**
+     * How many bytes to write to a container between checkpoints a failed
+     * write can be resumed from.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public void setPackingStrategy(PackingStrategy packingStrategy) {
+        this.packingStrategy = packingStrategy;
     }
 
     public void setThreads(int threads) {
         this.threads = threads;
     }
 
+    /**
+     * Read back each container after writing it and check it against the
+     * digests calculated while it was written.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Number of threads deleting blobs from staging, or 0 to delete them one
+     * at a time on the archiver's own thread.
+     */
+    public void setCleanupThreads(int cleanupThreads) {
+        this.cleanupThreads = cleanupThreads;
+    }
+
+    /**
+     * Limits how many blobs a second cleanup deletes from staging, so it
+     * doesn't starve ingest. 0 means no limit.
+     */
+    public void setCleanupRate(int blobsPerSecond) {
+        this.cleanupThrottle = new Throttle(blobsPerSecond);
+    }
+
     public void setSkipCleanup(boolean skipCleanup) {
         this.skipCleanup = skipCleanup;
     }
@@ -0,0 +1,236 @@
+package doss.local;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the archiver continuously rather than once from cron.
+ *
+ * Each poll runs the selection phase over whatever has been committed since
+ * the last one and hands every newly sealed container to a pool of workers
+ * which write it out and clean it up from staging. The workers are kept at
+ * most {@link #QUEUE_DEPTH} containers per thread behind; anything sealed
+ * beyond that waits for a later poll.
+ *
+ * While the bytes waiting in staging are over the staging threshold the
+ * open container is sealed on every poll so staging drains promptly. Below
+ * it the daemon backs off: containers are only archived once they fill up
+ * and the poll interval doubles each time a poll finds nothing to do, up to
+ * {@link #MAX_BACKOFF} times the configured interval. By default there's no
+ * threshold and containers are only archived once full.
+ */
+public class ArchiverDaemon implements Runnable {
+    static final int QUEUE_DEPTH = 2;
+    static final int MAX_BACKOFF = 16;
+    private final static Logger logger = Logger.getLogger(ArchiverDaemon.class
+            .getName());
+    private final Archiver archiver;
+    private final Database db;
+    private final int threads;
+    private final Set<Long> scheduled = Collections
+            .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final AtomicLong containersArchived = new AtomicLong();
+    private final AtomicLong blobsArchived = new AtomicLong();
+    private final AtomicLong bytesArchived = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Object wakeUp = new Object();
+    private volatile boolean stopped = false;
+    private long pollInterval = 10 * 1000;
+    private long stagingThreshold = Long.MAX_VALUE;
+    private long started;
+
+    /**
+     * @param threads
+     *            number of containers to write at once
+     */
+    public ArchiverDaemon(Archiver archiver, int threads) {
+        this.archiver = archiver;
+        this.db = archiver.db;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Polls until {@link #stop()} is called, then waits for the containers
+     * already handed to the workers to be finished.
+     */
+    @Override
+    public void run() {
+        started = System.currentTimeMillis();
+        logger.info("Archiver daemon started with " + threads + " threads, polling every "
+                + pollInterval + "ms");
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        try {
+            long interval = pollInterval;
+            while (!stopped) {
+                int newWork = 0;
+                try {
+                    newWork = poll(threadPool);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Archiver poll failed", e);
+                }
+                logger.info(toString());
+                interval = newWork > 0 ? pollInterval
+                        : Math.min(interval * 2, pollInterval * MAX_BACKOFF);
+                sleep(interval);
+            }
+        } finally {
+            threadPool.shutdown();
+            try {
+                while (!threadPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.info("Waiting for " + queueDepth() + " containers to finish");
+                }
+            } catch (InterruptedException e) {
+                threadPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            logger.info("Archiver daemon stopped. " + toString());
+        }
+    }
+
+    /**
+     * Selects newly committed blobs and schedules any sealed or written
+     * containers that aren't already queued.
+     *
+     * @return the number of containers scheduled
+     */
+    int poll(ExecutorService threadPool) {
+        try {
+            archiver.selectionPhase();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Selection phase failed", e);
+        }
+        long stagedBytes = db.getStagedBytes();
+        if (stagedBytes > stagingThreshold) {
+            int n = db.sealAllContainers();
+            if (n > 0) {
+                logger.info(stagedBytes + " bytes waiting in staging, sealed " + n
+                        + " open containers");
+            }
+        }
+        int count = 0;
+        if (!archiver.skipCleanup) {
+            count += schedule(threadPool, Database.CNT_WRITTEN);
+        }
+        count += schedule(threadPool, Database.CNT_SEALED);
+        return count;
+    }
+
+    private int schedule(ExecutorService threadPool, final int state) {
+        int count = 0;
+        for (final long containerId : db.findContainersByState(state)) {
+            if (queueDepth() >= threads * QUEUE_DEPTH) {
+                break;
+            }
+            if (!scheduled.add(containerId)) {
+                continue;
+            }
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int blobs = db.countBlobsByContainer(containerId);
+                        long size = archiver.archiveContainer(containerId, state);
+                        containersArchived.incrementAndGet();
+                        blobsArchived.addAndGet(blobs);
+                        bytesArchived.addAndGet(size);
+                    } catch (Exception e) {
+                        // left in its current state to be retried by a later poll
+                        failures.incrementAndGet();
+                        logger.log(Level.SEVERE, "Archiving container " + containerId + " failed", e);
+                    } finally {
+                        scheduled.remove(containerId);
+                    }
+                }
+            });
+            count++;
+        }
+        return count;
+    }
+
+    private void sleep(long millis) {
+        synchronized (wakeUp) {
+            if (stopped) {
+                return;
+            }
+            try {
+                wakeUp.wait(millis);
+            } catch (InterruptedException e) {
+                stopped = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Polls straight away rather than waiting out the poll interval, eg. after
+     * committing a transaction.
+     */
+    public void wakeUp() {
+        synchronized (wakeUp) {
+            wakeUp.notifyAll();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        wakeUp();
+    }
+
+    /**
+     * Number of containers handed to the workers and not yet finished.
+     */
+    public int queueDepth() {
+        return scheduled.size();
+    }
+
+    public long containersArchived() {
+        return containersArchived.get();
+    }
+
+    public long blobsArchived() {
+        return blobsArchived.get();
+    }
+
+    public long bytesArchived() {
+        return bytesArchived.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Bytes written per second per replica since the daemon started.
+     */
+    public double throughput() {
+        long elapsed = System.currentTimeMillis() - started;
+        return elapsed > 0 ? bytesArchived() * 1000.0 / elapsed : 0;
+    }
+
+    public void setPollInterval(long millis) {
+        this.pollInterval = millis;
+    }
+
+    /**
+     * Seal the open container on every poll while more than this many bytes
+     * are waiting in staging.
+     */
+    public void setStagingThreshold(long bytes) {
+        this.stagingThreshold = bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiverDaemon(queueDepth=" + queueDepth() + ", containers=" + containersArchived()
+                + ", blobs=" + blobsArchived() + ", bytes=" + bytesArchived() + ", failures="
+                + failures() + ", throughput=" + (long) throughput() + "B/s)";
+    }
+}
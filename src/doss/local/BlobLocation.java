@@ -1,19 +1,52 @@
 package doss.local;
 
+import java.util.Date;
+
 class BlobLocation {
     final private long blobId;
     final private Long containerId;
     final private Long offset;
     final private Integer containerState;
     final private Long txId;
+    final private String legacyPath;
+    final private Long size;
+    final private Date created;
 
     public BlobLocation(long blobId, Long containerId, Long offset, Integer containerState,
             Long txId) {
+        this(blobId, containerId, offset, containerState, txId, null, null);
+    }
+
+    /**
+     * @param size
+     *            blob size recorded when it was archived, if known
+     * @param created
+     *            blob creation time recorded when it was archived, if known
+     */
+    public BlobLocation(long blobId, Long containerId, Long offset, Integer containerState,
+            Long txId, Long size, Date created) {
         this.blobId = blobId;
         this.containerId = containerId;
         this.offset = offset;
         this.containerState = containerState;
         this.txId = txId;
+        this.legacyPath = null;
+        this.size = size;
+        this.created = created;
+    }
+
+    /**
+     * Location of a blob stored outside DOSS at a DOSSv1 path.
+     */
+    public BlobLocation(long blobId, String legacyPath) {
+        this.blobId = blobId;
+        this.containerId = null;
+        this.offset = null;
+        this.containerState = null;
+        this.txId = null;
+        this.legacyPath = legacyPath;
+        this.size = null;
+        this.created = null;
     }
 
     public long blobId() {
@@ -36,6 +69,39 @@ class BlobLocation {
         return containerState;
     }
 
+    public Long size() {
+        return size;
+    }
+
+    public Date created() {
+        return created;
+    }
+
+    /**
+     * Whether the size and creation time were recorded in the database so the
+     * blob's container doesn't need to be read to stat it.
+     */
+    public boolean hasMetadata() {
+        return size != null && created != null;
+    }
+
+    public String legacyPath() {
+        return legacyPath;
+    }
+
+    public boolean isLegacy() {
+        return legacyPath != null;
+    }
+
+    /**
+     * Legacy and archived locations never change so they are safe to cache
+     * indefinitely.
+     */
+    public boolean isImmutable() {
+        return isLegacy() || (containerState != null &&
+                containerState.equals(Database.CNT_ARCHIVED));
+    }
+
     public boolean isInStagingArea() {
         return containerId == null || offset == null ||
                 containerState == null ||
@@ -45,6 +111,9 @@ class BlobLocation {
 
     @Override
     public String toString() {
+        if (isLegacy()) {
+            return legacyPath;
+        }
         return containerId + ":" + offset;
     }
 
@@ -57,7 +57,7 @@ class CachedMetadataBlob implements Blob {
     @Override
     public String digest(String algorithm) throws NoSuchAlgorithmException, IOException {
         String canonAlgorithm = Digests.canonicalizeAlgorithm(algorithm);
-        String digest = db.getDigest(id(), canonAlgorithm);
+        String digest = db.findDigest(id(), canonAlgorithm);
         if (digest == null) {
             digest = blob.digest(canonAlgorithm);
             try {
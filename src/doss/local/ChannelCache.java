@@ -0,0 +1,180 @@
+package doss.local;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of read-only FileChannels for container files.
+ *
+ * Archived containers are immutable so a single open channel can be shared by
+ * every reader of a container as long as they only use positional reads.
+ * Channels are reference counted via {@link Lease} and are never closed while
+ * a lease on them is outstanding. Once more than maxOpen channels are open the
+ * least recently used idle channels are closed. Channels that have sat idle for
+ * longer than idleTimeout are also closed.
+ *
+ * If the cache is memory mapped, readers share a single {@link MappedSegments}
+ * mapping of each file which lives as long as the file's cache entry.
+ */
+class ChannelCache implements Closeable {
+
+    private final int maxOpen;
+    private final long idleTimeout;
+    private final boolean memoryMapped;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    ChannelCache(int maxOpen, long idleTimeoutMillis) {
+        this(maxOpen, idleTimeoutMillis, false);
+    }
+
+    ChannelCache(int maxOpen, long idleTimeoutMillis, boolean memoryMapped) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen must be at least 1");
+        }
+        this.maxOpen = maxOpen;
+        this.idleTimeout = idleTimeoutMillis;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Whether readers should use {@link Lease#segments()} rather than reading
+     * from the channel.
+     */
+    boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns a lease on a shared channel for the given file, opening it if
+     * necessary. The caller must close the lease when finished with it and
+     * must not close the channel itself.
+     */
+    synchronized Lease acquire(Path path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry != null && !entry.channel.isOpen()) {
+            // closed underneath us, eg. by a reader being interrupted
+            retire(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = new Entry(path, FileChannel.open(path, READ));
+            entries.put(path, entry);
+        }
+        entry.refs++;
+        evictIdle();
+        return new Lease(entry);
+    }
+
+    private synchronized void release(Entry entry) throws IOException {
+        entry.refs--;
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.refs == 0 && entries.get(entry.path) != entry) {
+            entry.channel.close();
+        } else {
+            evictIdle();
+        }
+    }
+
+    /**
+     * Closes idle channels until we're back under the limit and any that have
+     * been idle for too long.
+     */
+    private void evictIdle() throws IOException {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs == 0 && (entries.size() > maxOpen || entry.lastUsed < cutoff)) {
+                it.remove();
+                entry.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the cache. It will be closed once the last lease
+     * on it is released.
+     */
+    private void retire(Entry entry) throws IOException {
+        entries.remove(entry.path);
+        if (entry.refs == 0) {
+            entry.channel.close();
+        }
+    }
+
+    synchronized int openChannels() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Entry entry : entries.values()) {
+            entry.channel.close();
+        }
+        entries.clear();
+    }
+
+    private static class Entry {
+        final Path path;
+        final FileChannel channel;
+        int refs = 0;
+        long lastUsed = System.currentTimeMillis();
+        MappedSegments segments;
+
+        Entry(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A reference to a shared channel. Closing the lease releases the
+     * reference, not the channel.
+     */
+    class Lease implements Closeable {
+        private final Entry entry;
+        private boolean released = false;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        FileChannel channel() {
+            return entry.channel;
+        }
+
+        Path path() {
+            return entry.path;
+        }
+
+        /**
+         * Returns the shared memory mapping of the file, mapping it on first
+         * use.
+         */
+        MappedSegments segments() throws IOException {
+            synchronized (entry) {
+                if (entry.segments == null) {
+                    entry.segments = new MappedSegments(entry.channel);
+                }
+                return entry.segments;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (ChannelCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(entry);
+        }
+    }
+}
@@ -20,6 +20,19 @@ import org.ini4j.Profile.Section;
  *
  * [fs.staging]
  * path = /staging
+ *
+ * [area.master]
+ * fs = master1, master2
+ * max_container_size = 10G
+ * max_container_blobs = 100000
+ * direct_threshold = 2G
+ *
+ * [config]
+ * algorithms = MD5,SHA1
+ * max_open_containers = 100
+ * location_cache_size = 100000
+ * container_read_mode = channel (or mmap)
+ * put_threads = 4
  * </pre>
  */
 class Config {
@@ -27,6 +40,14 @@ class Config {
     Path stagingRoot = null;
     List<Path> masterRoots = new ArrayList<>();
     List<String> algorithms = new ArrayList<>();
+    int maxOpenContainers = 100;
+    int locationCacheSize = 100000;
+    boolean mmapContainers = false;
+    int dbPoolSize = Database.DEFAULT_POOL_SIZE;
+    int putThreads = 4;
+    long maxContainerSize = 10L * 1024 * 1024 * 1024;
+    int maxContainerBlobs = Integer.MAX_VALUE;
+    long directThreshold = Long.MAX_VALUE;
 
     Config(Path path) throws IOException {
         ini = new Ini(path.toFile());
@@ -43,11 +64,81 @@ class Config {
             barf("missing config section");
         }
         this.algorithms = Arrays.asList(config.get("algorithms").split("\\s*,\\s*"));
+        this.maxOpenContainers = parseInt(config, "max_open_containers", maxOpenContainers);
+        this.locationCacheSize = parseInt(config, "location_cache_size", locationCacheSize);
+        this.dbPoolSize = parseInt(config, "db_pool_size", dbPoolSize);
+        this.putThreads = parseInt(config, "put_threads", putThreads);
+        if (putThreads < 0) {
+            barf("config/put_threads must not be negative: " + putThreads);
+        }
+        String readMode = config.get("container_read_mode");
+        if (readMode != null) {
+            switch (readMode.trim()) {
+            case "channel":
+                mmapContainers = false;
+                break;
+            case "mmap":
+                mmapContainers = true;
+                break;
+            default:
+                barf("config/container_read_mode must be 'channel' or 'mmap' not: " + readMode);
+            }
+        }
+    }
+
+    private static int parseInt(Section section, String key, int defaultValue) {
+        String value = section.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            barf(section.getName() + "/" + key + " must be an integer: " + value);
+            return defaultValue;
+        }
+    }
+
+    private static long parseSize(Section section, String key) {
+        String value = section.get(key).trim();
+        if (value.isEmpty()) {
+            barf(section.getName() + "/" + key + " must be a size (eg. 512M, 10G) but is empty");
+        }
+        long multiplier = 1;
+        // each suffix falls through to the next smaller one
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+        case 'T':
+            multiplier *= 1024;
+        case 'G':
+            multiplier *= 1024;
+        case 'M':
+            multiplier *= 1024;
+        case 'K':
+            multiplier *= 1024;
+            value = value.substring(0, value.length() - 1).trim();
+        }
+        try {
+            long size = Long.parseLong(value);
+            if (size < 0) {
+                barf(section.getName() + "/" + key + " must not be negative: " + section.get(key));
+            }
+            if (size > Long.MAX_VALUE / multiplier) {
+                barf(section.getName() + "/" + key + " is too large: " + section.get(key));
+            }
+            return size * multiplier;
+        } catch (NumberFormatException e) {
+            barf(section.getName() + "/" + key + " must be a size (eg. 512M, 10G): "
+                    + section.get(key));
+            return 0;
+        }
     }
 
     private void parseArea(String name) throws IOException {
         Section section = ini.get(name);
         for (Entry<String, String> entry : section.entrySet()) {
+            if (!entry.getKey().equals("fs") && !name.equals("area.master")) {
+                barf("unknown option: " + name + "/" + entry.getKey());
+            }
             switch (entry.getKey()) {
             case "fs": {
                 for (String shortName : entry.getValue().split(",\\s*")) {
@@ -68,6 +159,21 @@ class Config {
                 }
                 break;
             }
+            case "max_container_size":
+                maxContainerSize = parseSize(section, entry.getKey());
+                if (maxContainerSize < 1) {
+                    barf(name + "/max_container_size must be positive");
+                }
+                break;
+            case "max_container_blobs":
+                maxContainerBlobs = parseInt(section, entry.getKey(), maxContainerBlobs);
+                if (maxContainerBlobs < 1) {
+                    barf(name + "/max_container_blobs must be positive");
+                }
+                break;
+            case "direct_threshold":
+                directThreshold = parseSize(section, entry.getKey());
+                break;
             default:
                 barf("unknown option: " + name + "/" + entry.getKey());
                 break;
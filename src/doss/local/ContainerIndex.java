@@ -0,0 +1,157 @@
+package doss.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A compact binary index of the records in a tar container, kept alongside
+ * it as nla.doss-ID.idx. It lets a container be listed and its records
+ * located by reading a few bytes per blob instead of seeking to every
+ * record header in the tar.
+ *
+ * The format is big-endian: a magic number and version, the container id,
+ * the digest algorithm and digest length, the number of records, and then a
+ * fixed width entry for each record in tar order.
+ */
+class ContainerIndex {
+    static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x44494458; // "DIDX"
+    private static final int VERSION = 1;
+
+    final long containerId;
+    final String algorithm;
+    final List<Entry> entries;
+
+    ContainerIndex(long containerId, String algorithm, List<Entry> entries) {
+        this.containerId = containerId;
+        this.algorithm = algorithm;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * A record in the container.
+     */
+    static class Entry {
+        final long blobId;
+        final long offset;
+        final long size;
+        final long created;
+        final String digest;
+
+        /**
+         * @param offset
+         *            offset of the record header in the tar
+         * @param created
+         *            modification time in the record header in milliseconds
+         */
+        Entry(long blobId, long offset, long size, long created, String digest) {
+            this.blobId = blobId;
+            this.offset = offset;
+            this.size = size;
+            this.created = created;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * The path of the index kept alongside a tar container.
+     */
+    static Path pathFor(Path tarPath) {
+        String name = tarPath.getFileName().toString();
+        if (name.endsWith(".tar")) {
+            name = name.substring(0, name.length() - ".tar".length());
+        }
+        return tarPath.resolveSibling(name + SUFFIX);
+    }
+
+    /**
+     * Writes the index and syncs it to disk, replacing any existing file.
+     */
+    void write(Path path) throws IOException {
+        int digestLength;
+        try {
+            digestLength = MessageDigest.getInstance(Digests.canonicalizeAlgorithm(algorithm))
+                    .getDigestLength();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(containerId);
+            out.writeUTF(algorithm);
+            out.writeInt(digestLength);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] digest = entry.digest == null ? null : DatatypeConverter
+                        .parseHexBinary(entry.digest);
+                if (digest == null || digest.length != digestLength) {
+                    throw new IOException("no " + algorithm + " digest of blob " + entry.blobId
+                            + " for index of container " + containerId);
+                }
+                out.writeLong(entry.blobId);
+                out.writeLong(entry.offset);
+                out.writeLong(entry.size);
+                out.writeLong(entry.created);
+                out.write(digest);
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    static ContainerIndex read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a container index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has unsupported version " + version);
+            }
+            long containerId = in.readLong();
+            String algorithm = in.readUTF();
+            byte[] digest = new byte[in.readInt()];
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long blobId = in.readLong();
+                long offset = in.readLong();
+                long size = in.readLong();
+                long created = in.readLong();
+                in.readFully(digest);
+                entries.add(new Entry(blobId, offset, size, created, DatatypeConverter
+                        .printHexBinary(digest).toLowerCase()));
+            }
+            if (in.read() != -1) {
+                throw new IOException(path + " has trailing data after " + count + " entries");
+            }
+            return new ContainerIndex(containerId, algorithm, entries);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerIndex(" + containerId + ", " + algorithm + ", " + entries.size()
+                + " entries)";
+    }
+}
@@ -9,6 +9,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,14 +17,19 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.compress.utils.Charsets;
+import org.h2.constant.ErrorCode;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.logging.PrintStreamLog;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.Transaction;
+import org.skife.jdbi.v2.sqlobject.customizers.BatchChunkSize;
 import org.skife.jdbi.v2.sqlobject.customizers.RegisterMapper;
 import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
@@ -43,44 +49,120 @@ abstract class Database implements Closeable, GetHandle,
      */
     static final String H2_SWITCHES = ";AUTO_SERVER=true;MVCC=true";
 
+    /**
+     * Default maximum number of pooled connections.
+     */
+    static final int DEFAULT_POOL_SIZE = 16;
+    private static final int OPEN_ATTEMPTS = 5;
+
     private String jdbcUrl;
+    private JdbcConnectionPool pool;
 
     /**
      * Opens an in-memory database for internal testing.
      */
     static Database open() {
-        return open(new DBI("jdbc:h2:mem:testing;MVCC=true"));
+        return open("jdbc:h2:mem:testing;MVCC=true");
     }
 
     public static Database open(String jdbcUrl) {
-        Database db = open(new DBI(jdbcUrl));
+        return open(jdbcUrl, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Opens a database backed by a pool of at most poolSize connections.
+     */
+    public static Database open(String jdbcUrl, int poolSize) {
+        Database db;
+        if (jdbcUrl.startsWith("jdbc:h2:")) {
+            JdbcConnectionPool pool = JdbcConnectionPool.create(jdbcUrl, "", "");
+            pool.setMaxConnections(poolSize);
+            try {
+                // connect eagerly so a bad url fails here rather than on
+                // first use, the idle connection also keeps the db open
+                connect(pool);
+            } catch (SQLException e) {
+                pool.dispose();
+                throw new RuntimeException("unable to open database " + jdbcUrl, e);
+            }
+            db = open(new DBI(pool));
+            db.pool = pool;
+        } else {
+            // no pool for other drivers, each call opens its own connection
+            db = open(new DBI(jdbcUrl));
+        }
         db.jdbcUrl = jdbcUrl;
         return db;
     }
 
+    /**
+     * Makes the first connection to a pool. When a file database is reopened
+     * straight after being closed H2's lock file watchdog from the previous
+     * open can briefly still be running and make the new lock attempt fail
+     * with "Concurrent update", so retry that a few times.
+     */
+    private static void connect(JdbcConnectionPool pool) throws SQLException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                pool.getConnection().close();
+                return;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ErrorCode.ERROR_OPENING_DATABASE_1
+                        || attempt == OPEN_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(100 * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted opening database", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection pool. Declared final so that JDBI's proxy doesn't
+     * replace it with its own close handler which would just close the
+     * calling thread's current handle.
+     */
     @Override
-    public abstract void close();
+    public final void close() {
+        if (pool != null) {
+            pool.dispose();
+        }
+    }
 
     /**
      * Opens a DOSS database stored on the local filesystem.
      */
     public static Database open(Path dbPath) {
+        return open(dbPath, DEFAULT_POOL_SIZE);
+    }
+
+    public static Database open(Path dbPath, int poolSize) {
         Path urlFile = dbPath.resolve("jdbc-url");
         if (Files.exists(dbPath.resolve("jdbc-url"))) {
             try {
-                return open(Files.readAllLines(urlFile, Charsets.UTF_8).get(0));
+                return open(Files.readAllLines(urlFile, Charsets.UTF_8).get(0), poolSize);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
-        return open("jdbc:h2:file:" + dbPath + "/doss" + H2_SWITCHES);
+        return open("jdbc:h2:file:" + dbPath + "/doss" + H2_SWITCHES, poolSize);
     }
 
+    /**
+     * Returns an on-demand Database: each call borrows a connection from the
+     * DBI for its duration so concurrent callers don't contend on a single
+     * connection. Calls made within a transaction or a concrete Database
+     * method share the same connection.
+     */
     public static Database open(DBI dbi) {
         if (System.getenv("DOSS_LOG_SQL") != null) {
             dbi.setSQLLog(new PrintStreamLog());
         }
-        return dbi.open(Database.class);
+        return dbi.onDemand(Database.class);
     }
 
     /**
@@ -128,6 +210,14 @@ abstract class Database implements Closeable, GetHandle,
     @SqlQuery("SELECT NEXTVAL('ID_SEQ')")
     public abstract long nextId();
 
+    /**
+     * Reserves count ids from the sequence in a single query. The ids are
+     * unique but not necessarily contiguous as other connections may be
+     * drawing from the sequence at the same time.
+     */
+    @SqlQuery("SELECT NEXTVAL('ID_SEQ') FROM SYSTEM_RANGE(1, :count)")
+    public abstract List<Long> nextIds(@Bind("count") int count);
+
     @SqlUpdate("ALTER SEQUENCE ID_SEQ INCREMENT BY :delta")
     public abstract void increaseBlobIdSequence(@Bind("delta") long delta);
 
@@ -139,17 +229,78 @@ abstract class Database implements Closeable, GetHandle,
     @SqlUpdate("INSERT INTO blobs (blob_id, tx_id) VALUES (:blobId, :txId)")
     public abstract void insertBlob(@Bind("blobId") long blobId, @Bind("txId") long txId);
 
+    @SqlBatch("INSERT INTO blobs (blob_id, tx_id) VALUES (:blobId, :txId)")
+    @BatchChunkSize(IN_LIST_LIMIT)
+    public abstract void insertBlobs(@Bind("blobId") List<Long> blobIds, @Bind("txId") long txId);
+
     @SqlUpdate("DELETE FROM blobs WHERE blob_id = :blobId")
     public abstract long deleteBlob(@Bind("blobId") long blobId);
 
-    @SqlQuery("SELECT blobs.blob_id,  blobs.container_id, offset, state, blobs.tx_id FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id WHERE blob_id = :blobId ")
+    @SqlQuery("SELECT blobs.blob_id,  blobs.container_id, offset, state, blobs.tx_id, blobs.size AS blob_size, blobs.created FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id WHERE blob_id = :blobId ")
     @RegisterMapper(BlobLocationMapper.class)
     public abstract BlobLocation locateBlob(@Bind("blobId") long blobId);
 
-    @SqlQuery("SELECT blobs.blob_id, blobs.container_id, offset, state, blobs.tx_id FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id")
+    @SqlQuery("SELECT blobs.blob_id, blobs.container_id, offset, state, blobs.tx_id, blobs.size AS blob_size, blobs.created FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id")
     @RegisterMapper(BlobLocationMapper.class)
     public abstract Iterable<BlobLocation> locateAllBlobs();
 
+    @SqlQuery("SELECT blobs.blob_id, blobs.container_id, offset, state, blobs.tx_id, blobs.size AS blob_size, blobs.created FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id WHERE blobs.blob_id BETWEEN :lo AND :hi ORDER BY blobs.blob_id")
+    @RegisterMapper(BlobLocationMapper.class)
+    public abstract List<BlobLocation> locateBlobsBetween(@Bind("lo") long lo, @Bind("hi") long hi);
+
+    /**
+     * Locates a batch of blobs. Ids are looked up with a single IN query per
+     * chunk of {@link #IN_LIST_LIMIT} ids. Blobs that don't exist are omitted
+     * from the result.
+     */
+    public List<BlobLocation> locateBlobs(List<Long> blobIds) {
+        List<BlobLocation> out = new ArrayList<>();
+        for (List<Long> chunk : chunks(blobIds)) {
+            Query<Map<String, Object>> query = getHandle().createQuery(
+                    "SELECT blobs.blob_id, blobs.container_id, offset, state, blobs.tx_id, blobs.size AS blob_size, blobs.created FROM blobs LEFT JOIN containers ON containers.container_id = blobs.container_id WHERE blob_id IN ("
+                            + placeholders(chunk.size()) + ")");
+            for (int i = 0; i < chunk.size(); i++) {
+                query.bind(i, chunk.get(i));
+            }
+            out.addAll(query.map(new BlobLocationMapper()).list());
+        }
+        return out;
+    }
+
+    /**
+     * Returns the legacy paths of any of the given blobs that are legacy
+     * blobs.
+     */
+    public Map<Long, String> locateLegacyBlobs(List<Long> blobIds) {
+        Map<Long, String> out = new HashMap<>();
+        for (List<Long> chunk : chunks(blobIds)) {
+            for (Map<String, Object> row : getHandle().select(
+                    "SELECT blob_id, legacy_path FROM legacy_paths WHERE blob_id IN ("
+                            + placeholders(chunk.size()) + ")", chunk.toArray())) {
+                out.put((Long) row.get("blob_id"), (String) row.get("legacy_path"));
+            }
+        }
+        return out;
+    }
+
+    static final int IN_LIST_LIMIT = 1000;
+
+    private static List<List<Long>> chunks(List<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += IN_LIST_LIMIT) {
+            chunks.add(ids.subList(i, Math.min(ids.size(), i + IN_LIST_LIMIT)));
+        }
+        return chunks;
+    }
+
+    private static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
     public static class BlobLocationMapper implements
             ResultSetMapper<BlobLocation> {
         @Override
@@ -159,7 +310,9 @@ abstract class Database implements Closeable, GetHandle,
                     (Long) r.getObject("container_id"),
                     (Long) r.getObject("offset"),
                     (Integer) r.getObject("state"),
-                    (Long) r.getObject("tx_id"));
+                    (Long) r.getObject("tx_id"),
+                    (Long) r.getObject("blob_size"),
+                    r.getTimestamp("created"));
         }
     }
 
@@ -228,10 +381,60 @@ abstract class Database implements Closeable, GetHandle,
     @RegisterMapper(ContainerMapper.class)
     public abstract Iterable<ContainerRecord> findAllContainers();
 
+    @SqlQuery("SELECT * FROM containers WHERE container_id BETWEEN :lo AND :hi ORDER BY container_id")
+    @RegisterMapper(ContainerMapper.class)
+    public abstract List<ContainerRecord> findContainersBetween(@Bind("lo") long lo,
+            @Bind("hi") long hi);
+
+    @SqlQuery("SELECT MAX(container_id) FROM containers")
+    public abstract Long findMaxContainerId();
+
     @SqlQuery("SELECT blobs.blob_id FROM blobs, txs WHERE blobs.tx_id = txs.tx_id AND blobs.container_id IS NULL AND txs.state = "
             + TX_COMMITTED)
     abstract public List<Long> findCommittedButUnassignedBlobs();
 
+    /**
+     * A committed blob waiting to be assigned to a container. The size is
+     * null for blobs staged before sizes were recorded at put time.
+     */
+    public static class UnassignedBlob {
+        private final long blobId;
+        private final long txId;
+        private final Long size;
+
+        UnassignedBlob(long blobId, long txId, Long size) {
+            this.blobId = blobId;
+            this.txId = txId;
+            this.size = size;
+        }
+
+        public long blobId() {
+            return blobId;
+        }
+
+        public long txId() {
+            return txId;
+        }
+
+        public Long size() {
+            return size;
+        }
+    }
+
+    public static class UnassignedBlobMapper implements ResultSetMapper<UnassignedBlob> {
+        @Override
+        public UnassignedBlob map(int index, ResultSet r, StatementContext ctx)
+                throws SQLException {
+            return new UnassignedBlob(r.getLong("blob_id"), r.getLong("tx_id"),
+                    (Long) r.getObject("size"));
+        }
+    }
+
+    @SqlQuery("SELECT blobs.blob_id, blobs.tx_id, blobs.size FROM blobs, txs WHERE blobs.tx_id = txs.tx_id AND blobs.container_id IS NULL AND txs.state = "
+            + TX_COMMITTED + " ORDER BY blobs.blob_id")
+    @RegisterMapper(UnassignedBlobMapper.class)
+    abstract public List<UnassignedBlob> findCommittedButUnassignedBlobSizes();
+
     @SqlQuery("SELECT blob_id FROM legacy_paths WHERE legacy_path = :legacy_path FOR UPDATE")
     public abstract Long findBlobIdForLegacyPathAndLock(
             @Bind("legacy_path") String legacyPath);
@@ -272,10 +475,32 @@ abstract class Database implements Closeable, GetHandle,
     public abstract String getDigest(@Bind("blobId") long blobId,
             @Bind("algorithm") String algorithm);
 
+    /**
+     * Finds a blob's digest by canonical algorithm name (eg. "sha1"), falling
+     * back to a row recorded under another spelling of it (eg. "SHA1") by
+     * older archivers.
+     */
+    @SqlQuery("SELECT digest FROM digests WHERE blob_id = :blobId AND REPLACE(LOWER(algorithm), '-', '') = :algorithm ORDER BY CASE WHEN algorithm = :algorithm THEN 0 ELSE 1 END LIMIT 1")
+    public abstract String findDigest(@Bind("blobId") long blobId,
+            @Bind("algorithm") String algorithm);
+
     @SqlUpdate("INSERT INTO digests (blob_id, algorithm, digest) VALUES(:blobId, :algorithm, :digest)")
     public abstract void insertDigest(@Bind("blobId") long blobId,
             @Bind("algorithm") String algorithm, @Bind("digest") String digest);
 
+    @SqlBatch("INSERT INTO digests (blob_id, algorithm, digest) VALUES(:blobId, :algorithm, :digest)")
+    @BatchChunkSize(IN_LIST_LIMIT)
+    public abstract void insertDigests(@Bind("blobId") List<Long> blobIds,
+            @Bind("algorithm") List<String> algorithms, @Bind("digest") List<String> digests);
+
+    @SqlBatch("UPDATE blobs SET size = :size WHERE blob_id = :blobId")
+    @BatchChunkSize(IN_LIST_LIMIT)
+    public abstract void setBlobSizes(@Bind("blobId") List<Long> blobIds,
+            @Bind("size") List<Long> sizes);
+
+    @SqlUpdate("DELETE FROM digests WHERE blob_id = :blobId")
+    public abstract void deleteDigests(@Bind("blobId") long blobId);
+
     public Map<String, String> getDigests(long blobId) {
         HashMap<String, String> out = new HashMap<String, String>();
         for (Map<String, Object> row : getHandle().select(
@@ -317,6 +542,21 @@ abstract class Database implements Closeable, GetHandle,
     @SqlQuery("SELECT last_offset FROM containers WHERE container_id = :container_id")
     public abstract Long getContainerLastOffset(@Bind("container_id") long containerId);
 
+    /**
+     * Returns how many bytes of a container being written are known to be
+     * synced to every replica, or null if it hasn't been checkpointed.
+     */
+    @SqlQuery("SELECT checkpoint FROM containers WHERE container_id = :container_id")
+    public abstract Long getContainerCheckpoint(@Bind("container_id") long containerId);
+
+    @SqlUpdate("UPDATE containers SET checkpoint = :checkpoint WHERE container_id = :container_id")
+    public abstract int setContainerCheckpoint(@Bind("container_id") long containerId,
+            @Bind("checkpoint") Long checkpoint);
+
+    @SqlQuery("SELECT COUNT(*) FROM blobs WHERE container_id = :container_id AND offset < :checkpoint")
+    public abstract int countBlobsBeforeCheckpoint(@Bind("container_id") long containerId,
+            @Bind("checkpoint") long checkpoint);
+
     @SqlQuery("SELECT blob_id FROM blobs WHERE tx_id = :tx_id")
     public abstract List<Long> listBlobsByTx(@Bind("tx_id") long txId);
 
@@ -368,22 +608,94 @@ abstract class Database implements Closeable, GetHandle,
         }
     }
 
+    @SqlBatch("UPDATE blobs SET container_id = :container_id WHERE blob_id = :blob_id")
+    @BatchChunkSize(IN_LIST_LIMIT)
+    public abstract int[] setBlobsContainerId(@Bind("blob_id") List<Long> blobIds,
+            @Bind("container_id") long containerId);
+
+    /**
+     * Assigns a batch of blobs to a container and grows the container by
+     * their total size.
+     */
+    @Transaction
+    public void addBlobsToContainer(List<Long> blobIds, long containerId, long size) {
+        int[] updated = setBlobsContainerId(blobIds, containerId);
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] != 1) {
+                throw new NoSuchBlobException(blobIds.get(i));
+            }
+        }
+        if (increaseContainerSize(containerId, size) != 1) {
+            throw new NoSuchContainerException(containerId);
+        }
+    }
+
     @SqlUpdate("UPDATE containers SET state = :state WHERE container_id = :container_id")
     public abstract int updateContainerState(@Bind("container_id") long containerId,
             @Bind("state") int cntSelected);
 
-    @SqlQuery("SELECT * FROM containers WHERE state = :state")
+    @SqlQuery("SELECT container_id FROM containers WHERE state = :state ORDER BY container_id")
     public abstract List<Long> findContainersByState(@Bind("state") long state);
 
-    @SqlQuery("SELECT blob_id FROM blobs WHERE container_id = :container_id")
+    @SqlQuery("SELECT COUNT(*) FROM blobs WHERE container_id = :container_id")
+    public abstract int countBlobsByContainer(@Bind("container_id") long containerId);
+
+    /**
+     * Finds the blob at the given position of a container in id order, so one
+     * can be picked at random through the container index without listing
+     * the rest.
+     */
+    @SqlQuery("SELECT blob_id FROM blobs WHERE container_id = :container_id ORDER BY blob_id LIMIT 1 OFFSET :offset")
+    public abstract Long findBlobInContainerAt(@Bind("container_id") long containerId,
+            @Bind("offset") int offset);
+
+    /**
+     * Lists a container's blobs in the order they're written to it, keeping
+     * each transaction's blobs together.
+     */
+    @SqlQuery("SELECT blob_id FROM blobs WHERE container_id = :container_id ORDER BY tx_id, blob_id")
     public abstract List<Long> findBlobsByContainer(@Bind("container_id") long containerId);
 
     @SqlUpdate("UPDATE containers SET state = " + CNT_SEALED + " WHERE state = " + CNT_OPEN)
     public abstract int sealAllContainers();
 
+    /**
+     * Totals the recorded sizes of blobs that still have their only copy in
+     * staging, ie. everything not yet in a written container.
+     */
+    @SqlQuery("SELECT COALESCE(SUM(blobs.size), 0) FROM blobs LEFT JOIN containers ON blobs.container_id = containers.container_id WHERE containers.state IS NULL OR containers.state < "
+            + CNT_WRITTEN)
+    public abstract long getStagedBytes();
+
+    public static class IndexEntryMapper implements ResultSetMapper<ContainerIndex.Entry> {
+        @Override
+        public ContainerIndex.Entry map(int index, ResultSet r, StatementContext ctx)
+                throws SQLException {
+            Timestamp created = r.getTimestamp("created");
+            return new ContainerIndex.Entry(r.getLong("blob_id"), r.getLong("offset"),
+                    r.getLong("size"), created == null ? 0 : created.getTime(),
+                    r.getString("digest"));
+        }
+    }
+
+    /**
+     * Lists the records of a written container in tar order along with their
+     * digests, for building its index. Digests are matched as in
+     * {@link #findDigest(long, String)}.
+     */
+    @SqlQuery("SELECT blobs.blob_id, blobs.offset, blobs.size, blobs.created, COALESCE(digests.digest, legacy.digest) AS digest FROM blobs LEFT JOIN digests ON digests.blob_id = blobs.blob_id AND digests.algorithm = :algorithm LEFT JOIN digests legacy ON digests.digest IS NULL AND legacy.blob_id = blobs.blob_id AND legacy.algorithm <> :algorithm AND REPLACE(LOWER(legacy.algorithm), '-', '') = :algorithm WHERE blobs.container_id = :container_id ORDER BY blobs.tx_id, blobs.blob_id")
+    @RegisterMapper(IndexEntryMapper.class)
+    public abstract List<ContainerIndex.Entry> findIndexEntries(
+            @Bind("container_id") long containerId, @Bind("algorithm") String algorithm);
+
     @SqlUpdate("UPDATE blobs SET offset = :offset WHERE blob_id = :blob_id")
     public abstract int setBlobOffset(@Bind("blob_id") long blobId, @Bind("offset") long offset);
 
+    @SqlUpdate("UPDATE blobs SET offset = :offset, size = :size, created = :created WHERE blob_id = :blob_id")
+    public abstract int setBlobOffsetAndMetadata(@Bind("blob_id") long blobId,
+            @Bind("offset") long offset, @Bind("size") long size,
+            @Bind("created") Date created);
+
     @SqlUpdate("INSERT INTO container_digests (container_id, algorithm, digest) VALUES(:containerId, :algorithm, :digest)")
     public abstract void insertContainerDigest(@Bind("containerId") long containerId,
             @Bind("algorithm") String algorithm, @Bind("digest") String digest);
@@ -392,6 +704,13 @@ abstract class Database implements Closeable, GetHandle,
     public abstract String getContainerDigest(@Bind("containerId") long containerId,
             @Bind("algorithm") String algorithm);
 
+    /**
+     * Like {@link #findDigest(long, String)} but for a whole container.
+     */
+    @SqlQuery("SELECT digest FROM container_digests WHERE container_id = :containerId AND REPLACE(LOWER(algorithm), '-', '') = :algorithm ORDER BY CASE WHEN algorithm = :algorithm THEN 0 ELSE 1 END LIMIT 1")
+    public abstract String findContainerDigest(@Bind("containerId") long containerId,
+            @Bind("algorithm") String algorithm);
+
     public Map<String, String> getContainerDigests(long containerId) {
         HashMap<String, String> out = new HashMap<String, String>();
         for (Map<String, Object> row : getHandle().select(
@@ -408,9 +727,53 @@ abstract class Database implements Closeable, GetHandle,
     public abstract Timestamp getLastAuditTime(@Bind("containerId") long containerId);
 
     @SqlUpdate("INSERT INTO digest_audits (container_id, algorithm, time, result) VALUES(:containerId, :algorithm, :time, :result)")
-    public abstract void insertAuditResult(@Bind("containerId") long containerId,
+    public abstract void insertDigestAudit(@Bind("containerId") long containerId,
             @Bind("algorithm") String algorithm, @Bind("time") Date time, @Bind("result") boolean result);
 
+    @SqlUpdate("UPDATE containers SET last_audit = :time WHERE container_id = :containerId")
+    public abstract int setContainerLastAudit(@Bind("containerId") long containerId,
+            @Bind("time") Date time);
+
+    /**
+     * Records an audit and stamps the container with its time so that
+     * {@link #findContainersDueForAudit} needn't consult the audit history.
+     */
+    @Transaction
+    public void insertAuditResult(long containerId, String algorithm, Date time, boolean result) {
+        insertDigestAudit(containerId, algorithm, time, result);
+        setContainerLastAudit(containerId, time);
+    }
+
+    /**
+     * Finds up to limit containers in the given state that haven't been
+     * audited since the cutoff, never audited ones first and then oldest
+     * audit first.
+     */
+    @SqlQuery("SELECT container_id FROM containers WHERE state = :state AND (last_audit IS NULL OR last_audit < :cutoff) ORDER BY last_audit NULLS FIRST, container_id LIMIT :limit")
+    public abstract List<Long> findContainersDueForAudit(@Bind("state") long state,
+            @Bind("cutoff") Date cutoff, @Bind("limit") int limit);
+
+    @SqlQuery("SELECT MAX(blob_id) FROM blobs")
+    public abstract Long findMaxBlobId();
+
+    @SqlQuery("SELECT MIN(blobs.blob_id) FROM blobs JOIN containers ON containers.container_id = blobs.container_id WHERE containers.state = :state")
+    public abstract Long findMinBlobIdInContainerState(@Bind("state") int state);
+
+    @SqlQuery("SELECT MAX(blobs.blob_id) FROM blobs JOIN containers ON containers.container_id = blobs.container_id WHERE containers.state = :state")
+    public abstract Long findMaxBlobIdInContainerState(@Bind("state") int state);
+
+    @SqlUpdate("INSERT INTO sample_audits (blob_id, container_id, fs, algorithm, time, result) VALUES(:blobId, :containerId, :fs, :algorithm, :time, :result)")
+    public abstract void insertSampleAudit(@Bind("blobId") long blobId,
+            @Bind("containerId") long containerId, @Bind("fs") String fs,
+            @Bind("algorithm") String algorithm, @Bind("time") Date time,
+            @Bind("result") boolean result);
+
+    @SqlQuery("SELECT DISTINCT container_id FROM sample_audits WHERE time >= :since AND result = false")
+    public abstract List<Long> findContainersWithFailedSamples(@Bind("since") Date since);
+
+    @SqlQuery("SELECT DISTINCT fs FROM sample_audits WHERE time >= :since AND result = false")
+    public abstract List<String> findFilesystemsWithFailedSamples(@Bind("since") Date since);
+
     @SqlQuery("SELECT x.container_id FROM digest_audits x INNER JOIN ( SELECT container_id,MAX(time) mtime FROM digest_audits GROUP BY container_id) y ON x.container_id = y.container_id AND x.time = y.mtime AND result = false")
     public abstract List<Long> getFailedAudits();
 }
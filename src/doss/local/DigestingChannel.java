@@ -0,0 +1,72 @@
+package doss.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a WritableByteChannel and digests and counts everything written
+ * through it, so a blob can be digested while it's being stored rather than
+ * read back later.
+ */
+class DigestingChannel implements WritableByteChannel {
+    private final WritableByteChannel channel;
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private long size = 0;
+
+    DigestingChannel(WritableByteChannel channel, Iterable<String> algorithms)
+            throws NoSuchAlgorithmException {
+        this.channel = channel;
+        for (String algorithm : algorithms) {
+            String canonAlgorithm = Digests.canonicalizeAlgorithm(algorithm);
+            digests.put(canonAlgorithm, MessageDigest.getInstance(canonAlgorithm));
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int n = channel.write(src);
+        if (n > 0) {
+            size += n;
+            written.limit(written.position() + n);
+            for (MessageDigest md : digests.values()) {
+                md.update(written.duplicate());
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the hex-encoded digests of everything written so far keyed by
+     * canonical algorithm name. Can only be called once.
+     */
+    Map<String, String> digests() {
+        Map<String, String> out = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            out.put(entry.getKey(), Digests.toHex(entry.getValue()));
+        }
+        return out;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
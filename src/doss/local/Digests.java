@@ -25,6 +25,10 @@ class Digests {
             md.update(buffer);
             buffer.clear();
         }
+        return toHex(md);
+    }
+
+    static String toHex(MessageDigest md) {
         return DatatypeConverter.printHexBinary(md.digest()).toLowerCase();
     }
 
@@ -1,11 +1,27 @@
 package doss.local;
 
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import doss.local.Database.ContainerRecord;
 
@@ -23,16 +39,33 @@ import doss.local.Database.ContainerRecord;
  * 7. Containers in db with missing tar files.
  * 8. Blobs marked as archived but with files still in staging. (failed cleanup)
  *
+ * Each filesystem is split into shards of a million ids, the files in the
+ * subdirectories of one directory, which are checked in parallel. Each of
+ * those leaf directories is listed, sorted by id and merged against the
+ * sorted database rows for the thousand ids it holds, fetched in fixed size
+ * chunks of ids rather than looked up per file. Finished shards are appended
+ * to a checkpoint file in the staging area so an interrupted run can be asked
+ * to pick up where it left off.
  */
 public class Fsck {
 
+    static final String CHECKPOINT_FILE = "fsck.checkpoint";
+    private static final String ROOT_SHARD = ".";
+    private static final long SHARD_IDS = 1000000;
+
     private final LocalBlobStore blobStore;
     private final Database db;
+    private final Path checkpointPath;
     private boolean verbose = false;
+    private boolean resume = false;
+    private int threads = 4;
+    private long rowChunk = 10000;
+    private Set<String> completed = new HashSet<>();
 
     public Fsck(LocalBlobStore blobStore) {
         this.blobStore = blobStore;
         this.db = blobStore.db;
+        this.checkpointPath = blobStore.stagingRoot.resolve(CHECKPOINT_FILE);
     }
 
     public Fsck setVerbose(boolean verbose) {
@@ -40,133 +73,495 @@ public class Fsck {
         return this;
     }
 
+    /**
+     * Whether to skip shards recorded as finished by an interrupted run.
+     * Otherwise any checkpoint left behind is discarded.
+     */
+    public Fsck setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public Fsck setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * How many ids' worth of rows to fetch at a time.
+     */
+    Fsck setRowChunk(long rowChunk) {
+        this.rowChunk = rowChunk;
+        return this;
+    }
+
     public void run() throws IOException {
+        completed = new HashSet<>();
+        if (!resume) {
+            if (Files.deleteIfExists(checkpointPath)) {
+                System.out.println("Discarded checkpoint of an interrupted run, use -r to resume");
+            }
+        } else if (Files.exists(checkpointPath)) {
+            completed.addAll(Files.readAllLines(checkpointPath, StandardCharsets.UTF_8));
+            System.out.println("Resuming from " + checkpointPath + ", skipping "
+                    + completed.size() + " finished shards");
+        }
         checkStagingFs();
         for (Path fsRoot : blobStore.masterRoots) {
             checkMasterFs(fsRoot);
         }
-        checkDatabase();
+        Files.deleteIfExists(checkpointPath);
     }
 
     void report(Path file, String message) {
         System.out.println(file + " " + message);
     }
 
+    private synchronized void problem(Path file, String message) {
+        report(file, message);
+    }
+
     void checkStagingFs() throws IOException {
-        Files.walkFileTree(blobStore.stagingRoot.resolve("data"), new SimpleFileVisitor<Path>() {
+        checkFs(new FsCheck<BlobLocation>(blobStore.stagingRoot, "%d", db.findMaxBlobId()) {
 
             @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                    throws IOException {
-                if (!Files.isDirectory(file)) {
-                    String filename = file.getFileName().toString();
-                    if (filename.startsWith("nla.blob-")) {
-                        long blobId;
-                        try {
-                            blobId = blobStore.parseBlobFileName(filename);
-                        } catch (NumberFormatException e) {
-                            report(file, "bad filename");
-                            return FileVisitResult.CONTINUE;
-                        }
-                        BlobLocation loc = db.locateBlob(blobId);
-                        if (loc == null) {
-                            report(file, "orphaned file");
-                        } else if (!loc.isInStagingArea()) {
-                            report(file,
-                                    "should not exist, blob archived. Container cleanup failed?");
-                        } else if (!file.equals(blobStore.stagingPath(blobId))) {
-                            report(file,
-                                    "in wrong location. Should be " + blobStore.stagingPath(blobId));
-                        } else if (!Files.isReadable(file)) {
-                            report(file, "not readable");
-                        } else if (loc.containerId() != null && loc.containerState() == null) {
-                            report(file, "has container id nla.doss-" + loc.containerId()
-                                    + " but container state is null");
-                        } else if (loc.txId() == null) {
-                            report(file, "has null tx_id");
-                        } else if (verbose) {
-                            report(file, "OK");
-                        }
-                    } else {
-                        report(file, "unexpected file");
-                    }
+            Long parseId(Path file, String filename) {
+                if (!filename.startsWith("nla.blob-")) {
+                    problem(file, "unexpected file");
+                    return null;
                 }
-                return FileVisitResult.CONTINUE;
+                try {
+                    return blobStore.parseBlobFileName(filename);
+                } catch (NumberFormatException e) {
+                    problem(file, "bad filename");
+                    return null;
+                }
+            }
+
+            @Override
+            List<BlobLocation> rowsBetween(long lo, long hi) {
+                return db.locateBlobsBetween(lo, hi);
             }
 
             @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                report(file, exc.toString());
-                return FileVisitResult.CONTINUE;
+            BlobLocation lookup(long id) {
+                return db.locateBlob(id);
             }
 
+            @Override
+            long idOf(BlobLocation loc) {
+                return loc.blobId();
+            }
+
+            @Override
+            void checkFile(Path file, long blobId, BlobLocation loc) {
+                if (loc == null) {
+                    problem(file, "orphaned file");
+                } else if (!loc.isInStagingArea()) {
+                    problem(file, "should not exist, blob archived. Container cleanup failed?");
+                } else if (!file.equals(blobStore.stagingPath(blobId))) {
+                    problem(file, "in wrong location. Should be " + blobStore.stagingPath(blobId));
+                } else if (!Files.isReadable(file)) {
+                    problem(file, "not readable");
+                } else if (loc.containerId() != null && loc.containerState() == null) {
+                    problem(file, "has container id nla.doss-" + loc.containerId()
+                            + " but container state is null");
+                } else if (loc.txId() == null) {
+                    problem(file, "has null tx_id");
+                } else if (verbose) {
+                    problem(file, "OK");
+                }
+            }
+
+            @Override
+            boolean isExpected(Path file, long blobId) {
+                return file.equals(blobStore.stagingPath(blobId));
+            }
+
+            @Override
+            void checkMissing(BlobLocation loc) {
+                if (loc.isInStagingArea()) {
+                    problem(blobStore.stagingPath(loc.blobId()), "missing or unreadable");
+                }
+            }
         });
     }
 
     void checkMasterFs(final Path fsRoot) throws IOException {
-        Files.walkFileTree(fsRoot.resolve("data"), new SimpleFileVisitor<Path>() {
+        checkFs(new FsCheck<ContainerRecord>(fsRoot, "%03d", db.findMaxContainerId()) {
 
             @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                    throws IOException {
-                if (!Files.isDirectory(file)) {
-                    String filename = file.getFileName().toString();
-                    if (filename.startsWith("nla.doss-")) {
-                        long containerId;
-                        try {
-                            containerId = blobStore.parseContinerFileName(filename);
-                        } catch (NumberFormatException e) {
-                            report(file, "bad filename");
-                            return FileVisitResult.CONTINUE;
-                        }
-                        ContainerRecord cnt = db.findContainer(containerId);
-                        if (cnt == null) {
-                            report(file, "orphaned container");
-                        } else if (cnt.state() != Database.CNT_ARCHIVED) {
-                            report(file,
-                                    "should not exist, container is in state: " + cnt.stateName());
-                        } else if (!file.equals(blobStore.tarPath(fsRoot, containerId))) {
-                            report(file,
-                                    "in wrong location. Should be "
-                                            + blobStore.tarPath(fsRoot, containerId));
-                        } else if (!Files.isReadable(file)) {
-                            report(file, "not readable");
-                        } else if (verbose) {
-                            report(file, "OK");
+            Long parseId(Path file, String filename) {
+                if (!filename.startsWith("nla.doss-")) {
+                    problem(file, "unexpected file");
+                    return null;
+                }
+                try {
+                    return blobStore.parseContinerFileName(isIndex(file) ? filename.substring(0,
+                            filename.length() - ContainerIndex.SUFFIX.length()) + ".tar"
+                            : filename);
+                } catch (IllegalArgumentException e) {
+                    problem(file, "bad filename");
+                    return null;
+                }
+            }
+
+            @Override
+            List<ContainerRecord> rowsBetween(long lo, long hi) {
+                return db.findContainersBetween(lo, hi);
+            }
+
+            @Override
+            ContainerRecord lookup(long id) {
+                return db.findContainer(id);
+            }
+
+            @Override
+            long idOf(ContainerRecord cnt) {
+                return cnt.id();
+            }
+
+            @Override
+            void checkFile(Path file, long containerId, ContainerRecord cnt) {
+                Path expected = blobStore.tarPath(fsRoot, containerId);
+                if (isIndex(file)) {
+                    expected = ContainerIndex.pathFor(expected);
+                }
+                if (cnt == null) {
+                    problem(file, "orphaned container");
+                } else if (cnt.state() != Database.CNT_ARCHIVED) {
+                    problem(file, "should not exist, container is in state: " + cnt.stateName());
+                } else if (!file.equals(expected)) {
+                    problem(file, "in wrong location. Should be " + expected);
+                } else if (!Files.isReadable(file)) {
+                    problem(file, "not readable");
+                } else if (verbose) {
+                    problem(file, "OK");
+                }
+            }
+
+            @Override
+            boolean isExpected(Path file, long containerId) {
+                // only the tar itself; an index without it is no use, and
+                // containers archived before indexes existed have none
+                return file.equals(blobStore.tarPath(fsRoot, containerId));
+            }
+
+            @Override
+            void checkMissing(ContainerRecord cnt) {
+                if (cnt.state() == Database.CNT_ARCHIVED) {
+                    problem(blobStore.tarPath(fsRoot, cnt.id()), "missing or unreadable");
+                }
+            }
+
+            private boolean isIndex(Path file) {
+                return file.getFileName().toString().endsWith(ContainerIndex.SUFFIX);
+            }
+        });
+    }
+
+    /**
+     * How one kind of filesystem maps files to database rows.
+     *
+     * Files live in data/ under directories named for each group of three
+     * digits of their id above the lowest, so ids below 1000 are in data/
+     * itself and every other directory holds the thousand ids that share
+     * the prefix spelled out by its path.
+     */
+    private abstract class FsCheck<T> {
+        final Path root;
+        final String dirFormat;
+        final long maxId;
+
+        FsCheck(Path root, String dirFormat, Long maxId) {
+            this.root = root;
+            this.dirFormat = dirFormat;
+            this.maxId = maxId == null ? -1 : maxId;
+        }
+
+        /**
+         * Parses a file's id, reporting and returning null if it has none.
+         */
+        abstract Long parseId(Path file, String filename);
+
+        /**
+         * Rows with ids between lo and hi inclusive, in id order.
+         */
+        abstract List<T> rowsBetween(long lo, long hi);
+
+        abstract T lookup(long id);
+
+        abstract long idOf(T row);
+
+        /**
+         * Checks a file against its row, which is null if there is none.
+         */
+        abstract void checkFile(Path file, long id, T row);
+
+        /**
+         * Whether file is the one the row with this id should have, so that
+         * the row isn't missing. Misplaced copies and extra files don't count.
+         */
+        abstract boolean isExpected(Path file, long id);
+
+        /**
+         * Checks a row that has no file.
+         */
+        abstract void checkMissing(T row);
+    }
+
+    private <T> void checkFs(final FsCheck<T> check) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (long shard = 0; shard <= lastShard(check); shard++) {
+            final long prefix = shard;
+            final String key = check.root + " " + shardName(check, prefix);
+            if (completed.contains(key)) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    checkShard(check, prefix);
+                    markCompleted(key);
+                    return null;
+                }
+            });
+        }
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (Future<Void> future : threadPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("fsck interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    /**
+     * The highest prefix of a shard that may hold ids up to maxId. Every
+     * prefix from 0 up to it is a shard, whether or not its directory exists.
+     */
+    private static long lastShard(FsCheck<?> check) {
+        return Math.max(0, check.maxId) / SHARD_IDS;
+    }
+
+    /**
+     * The directory for the ids with the given prefix, that is the ids from
+     * prefix*1000 to prefix*1000+999.
+     */
+    private static Path prefixDir(FsCheck<?> check, long prefix) {
+        String dirs = "";
+        for (long x = prefix; x > 0; x = x / 1000) {
+            dirs = String.format(check.dirFormat + "/%s", x % 1000, dirs);
+        }
+        return check.root.resolve("data").resolve(dirs);
+    }
+
+    private static String shardName(FsCheck<?> check, long prefix) {
+        return prefix == 0 ? ROOT_SHARD
+                : check.root.resolve("data").relativize(prefixDir(check, prefix)).toString();
+    }
+
+    /**
+     * The three digit group a directory name stands for, or -1 if it isn't
+     * one we'd create. Only ids below 1000 live at the top so it has no 0.
+     */
+    private static long dirNumber(FsCheck<?> check, String name, boolean top) {
+        try {
+            long n = Long.parseLong(name);
+            return n >= (top ? 1 : 0) && n < 1000
+                    && name.equals(String.format(check.dirFormat, n)) ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks the leaf directories of a shard, those holding the files with
+     * ids from prefix*SHARD_IDS to prefix*SHARD_IDS+SHARD_IDS-1, against
+     * their rows. Each leaf is listed and merged on its own so only one
+     * leaf's files and one chunk of rows are in memory at a time. The root
+     * shard's leaves are data/ itself and the top-level directories.
+     */
+    private <T> void checkShard(FsCheck<T> check, long prefix) throws IOException {
+        Path dir = prefixDir(check, prefix);
+        TreeMap<Long, Path> leaves = new TreeMap<>();
+        if (prefix == 0) {
+            leaves.put(0L, dir);
+        }
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    // files here belong to the parent shard's leaf
+                    if (Files.isDirectory(entry)) {
+                        long n = dirNumber(check, entry.getFileName().toString(), prefix == 0);
+                        if (n < 0) {
+                            checkStrayTree(check, entry);
+                        } else {
+                            leaves.put(prefix * 1000 + n, entry);
                         }
-                    } else {
-                        report(file, "unexpected file");
                     }
                 }
-                return FileVisitResult.CONTINUE;
+            } catch (IOException e) {
+                problem(dir, e.toString());
             }
+        }
+        RowCursor<T> rows = new RowCursor<>(check, prefix * SHARD_IDS,
+                prefix * SHARD_IDS + SHARD_IDS - 1);
+        for (Map.Entry<Long, Path> leaf : leaves.entrySet()) {
+            checkLeaf(check, leaf.getValue(), leaf.getKey(), rows);
+        }
+        rows.skipTo(Long.MAX_VALUE);
+    }
 
+    /**
+     * Lists the files of one leaf directory, sorts them by id and merges them
+     * with the rows. Subdirectories are left to their own shard, or checked
+     * file by file if there's none for them.
+     */
+    private <T> void checkLeaf(FsCheck<T> check, Path dir, long prefix, RowCursor<T> rows) {
+        long lo = prefix * 1000;
+        long hi = lo + 999;
+        final List<Long> ids = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    if (prefix > lastShard(check)) {
+                        checkStrayTree(check, entry);
+                    }
+                    continue;
+                }
+                Long id = check.parseId(entry, entry.getFileName().toString());
+                if (id == null) {
+                    continue;
+                } else if (id < lo || id > hi) {
+                    checkStray(check, entry, id);
+                } else {
+                    ids.add(id);
+                    files.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            problem(dir, e.toString());
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
             @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                report(file, exc.toString());
-                return FileVisitResult.CONTINUE;
+            public int compare(Integer a, Integer b) {
+                return Long.compare(ids.get(a), ids.get(b));
             }
         });
+        for (int i : order) {
+            long id = ids.get(i);
+            Path file = files.get(i);
+            T row = rows.skipTo(id);
+            if (row != null && check.idOf(row) == id) {
+                check.checkFile(file, id, row);
+                rows.matched |= check.isExpected(file, id);
+            } else {
+                check.checkFile(file, id, null);
+            }
+        }
+        rows.skipTo(hi + 1);
     }
 
-    private void checkDatabase() {
-        for (BlobLocation loc : db.locateAllBlobs()) {
-            if (loc.isInStagingArea()) {
-                Path file = blobStore.stagingPath(loc.blobId());
-                if (!Files.isReadable(file) || !Files.isRegularFile(file)) {
-                    report(file, "missing or unreadable");
+    /**
+     * Walks the rows between lo and hi in id order, fetching rowChunk ids
+     * worth at a time so a shard's rows are never all in memory at once.
+     */
+    private class RowCursor<T> {
+        private final FsCheck<T> check;
+        private final long hi;
+        private long next;
+        private boolean exhausted;
+        private List<T> rows = Collections.emptyList();
+        private int i;
+        /** whether the current row's expected file has been seen */
+        boolean matched;
+
+        RowCursor(FsCheck<T> check, long lo, long hi) {
+            this.check = check;
+            this.next = lo;
+            this.hi = hi;
+        }
+
+        /**
+         * The current row, or null after the last.
+         */
+        T peek() {
+            while (i >= rows.size()) {
+                if (exhausted) {
+                    return null;
                 }
+                long end = hi - next < rowChunk ? hi : next + rowChunk - 1;
+                rows = check.rowsBetween(next, end);
+                i = 0;
+                exhausted = end == hi;
+                next = end + 1;
             }
+            return rows.get(i);
         }
-        for (ContainerRecord cnt : db.findAllContainers()) {
-            if (cnt.state() == Database.CNT_ARCHIVED) {
-                for (Path fsRoot : blobStore.masterRoots) {
-                    Path file = blobStore.tarPath(fsRoot, cnt.id());
-                    if (!Files.isReadable(file) || !Files.isRegularFile(file)) {
-                        report(file, "missing or unreadable");
-                    }
+
+        /**
+         * Moves past the rows with ids below id, reporting any whose file
+         * wasn't seen, and returns the row it stops at.
+         */
+        T skipTo(long id) {
+            T row = peek();
+            for (; row != null && check.idOf(row) < id; row = peek()) {
+                if (!matched) {
+                    check.checkMissing(row);
                 }
+                matched = false;
+                i++;
             }
+            return row;
         }
     }
+
+    /**
+     * Checks a file whose id doesn't belong in its directory. It can only be
+     * in the wrong place, or orphaned, so these are rare enough to look up
+     * one at a time.
+     */
+    private <T> void checkStray(FsCheck<T> check, Path file, long id) {
+        check.checkFile(file, id, check.lookup(id));
+    }
+
+    /**
+     * Checks every file in and below a directory no shard covers.
+     */
+    private <T> void checkStrayTree(FsCheck<T> check, Path dir) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    checkStrayTree(check, entry);
+                    continue;
+                }
+                Long id = check.parseId(entry, entry.getFileName().toString());
+                if (id != null) {
+                    checkStray(check, entry, id);
+                }
+            }
+        } catch (IOException e) {
+            problem(dir, e.toString());
+        }
+    }
+
+    private synchronized void markCompleted(String key) throws IOException {
+        Files.write(checkpointPath, (key + "\n").getBytes(StandardCharsets.UTF_8), CREATE,
+                WRITE, APPEND);
+    }
 }
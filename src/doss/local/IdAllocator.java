@@ -0,0 +1,71 @@
+package doss.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hands out blob and transaction ids from blocks reserved from the database
+ * sequence, so that allocating an id usually doesn't need a query.
+ *
+ * Reserved ids are never returned to the sequence so ids stay unique across
+ * crashes and across processes sharing the database; a crash or exit just
+ * leaves a gap. To avoid short lived processes wasting large blocks the block
+ * size starts small and doubles on each refill up to maxBlockSize.
+ */
+class IdAllocator {
+    static final int INITIAL_BLOCK_SIZE = 16;
+    static final int DEFAULT_MAX_BLOCK_SIZE = 1024;
+
+    private final Database db;
+    private final int maxBlockSize;
+    private final Deque<Long> reserved = new ArrayDeque<>();
+    private int blockSize;
+    private long refills = 0;
+
+    IdAllocator(Database db) {
+        this(db, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    IdAllocator(Database db, int maxBlockSize) {
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("maxBlockSize must be at least 1");
+        }
+        this.db = db;
+        this.maxBlockSize = maxBlockSize;
+        this.blockSize = Math.min(INITIAL_BLOCK_SIZE, maxBlockSize);
+    }
+
+    synchronized long next() {
+        if (reserved.isEmpty()) {
+            reserved.addAll(db.nextIds(blockSize));
+            refills++;
+            blockSize = Math.min(blockSize * 2, maxBlockSize);
+        }
+        return reserved.removeFirst();
+    }
+
+    /**
+     * Allocates count ids at once. Whatever is left of the current block is
+     * used first and the shortfall is reserved with a single query.
+     */
+    synchronized List<Long> next(int count) {
+        List<Long> ids = new ArrayList<>(count);
+        while (ids.size() < count && !reserved.isEmpty()) {
+            ids.add(reserved.removeFirst());
+        }
+        if (ids.size() < count) {
+            ids.addAll(db.nextIds(count - ids.size()));
+            refills++;
+        }
+        return ids;
+    }
+
+    /**
+     * Number of times we've had to go to the database for more ids.
+     */
+    synchronized long refills() {
+        return refills;
+    }
+}
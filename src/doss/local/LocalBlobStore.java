@@ -5,15 +5,26 @@ import static java.nio.file.StandardOpenOption.WRITE;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.apache.commons.compress.utils.Charsets;
@@ -41,24 +52,41 @@ public class LocalBlobStore implements BlobStore {
     final Path stagingRoot;
     final List<Path> masterRoots;
     final List<String> algorithms;
+    final ChannelCache channelCache;
+    final LocationCache locationCache;
+    final IdAllocator idAllocator;
+    final int putThreads;
+    final long maxContainerSize;
+    final int maxContainerBlobs;
+    final long directThreshold;
+    final static long CHANNEL_IDLE_TIMEOUT = 60 * 1000;
     final static String clientName = System.getProperty("nla.node", "java")
             + ":" + ManagementFactory.getRuntimeMXBean().getName();
 
     private LocalBlobStore(Path rootDir, String jdbcUrl) throws IOException {
         this.rootDir = rootDir;
-        if (jdbcUrl == null) {
-            db = Database.open(subdir("db"));
-        } else {
-            db = Database.open(jdbcUrl);
-        }
+        Path dbDir = jdbcUrl == null ? subdir("db") : null;
         Path configFile = rootDir.resolve("conf/doss.conf");
         if (!Files.exists(configFile)) {
             createDefaultConfig(configFile);
         }
         Config config = new Config(configFile);
+        if (jdbcUrl == null) {
+            db = Database.open(dbDir, config.dbPoolSize);
+        } else {
+            db = Database.open(jdbcUrl, config.dbPoolSize);
+        }
         stagingRoot = config.stagingRoot;
         masterRoots = config.masterRoots;
         algorithms = config.algorithms;
+        channelCache = new ChannelCache(config.maxOpenContainers, CHANNEL_IDLE_TIMEOUT,
+                config.mmapContainers);
+        locationCache = new LocationCache(config.locationCacheSize);
+        idAllocator = new IdAllocator(db);
+        putThreads = config.putThreads;
+        maxContainerSize = config.maxContainerSize;
+        maxContainerBlobs = config.maxContainerBlobs;
+        directThreshold = config.directThreshold;
     }
 
     public Path getConfigDir() {
@@ -136,19 +164,91 @@ public class LocalBlobStore implements BlobStore {
 
     @Override
     public void close() {
-        db.close();
+        try {
+            channelCache.close();
+        } catch (IOException e) {
+            logger.warning("error closing container channels: " + e);
+        } finally {
+            db.close();
+        }
     }
 
     @Override
     public Blob get(long blobId) throws IOException, NoSuchBlobException {
-        String legacyPath = db.locateLegacy(blobId);
-        if (legacyPath != null) {
-            return new FileBlob(blobId, Paths.get(legacyPath));
-        }
-        BlobLocation location = db.locateBlob(blobId);
+        BlobLocation location = locate(blobId);
         if (location == null) {
             throw new NoSuchBlobException(blobId);
         }
+        if (needsContainer(location)) {
+            try (Container container = openContainer(location.containerId())) {
+                return new CachedMetadataBlob(db, container.get(location.offset()));
+            }
+        }
+        return get(location);
+    }
+
+    /**
+     * Retrieves a batch of blobs. Locations are resolved in bulk and blobs
+     * which need their container opened to be read are grouped so that each
+     * container is only opened once.
+     */
+    @Override
+    public List<Blob> getAll(long... blobIds) throws IOException, NoSuchBlobException {
+        Map<Long, BlobLocation> locations = locateAll(blobIds);
+        Map<Long, Blob> blobs = new HashMap<>();
+        Map<Long, List<BlobLocation>> byContainer = new HashMap<>();
+        for (long blobId : blobIds) {
+            BlobLocation location = locations.get(blobId);
+            if (location == null) {
+                throw new NoSuchBlobException(blobId);
+            }
+            if (!needsContainer(location)) {
+                blobs.put(blobId, get(location));
+                continue;
+            }
+            List<BlobLocation> group = byContainer.get(location.containerId());
+            if (group == null) {
+                group = new ArrayList<>();
+                byContainer.put(location.containerId(), group);
+            }
+            group.add(location);
+        }
+        for (Map.Entry<Long, List<BlobLocation>> entry : byContainer.entrySet()) {
+            try (Container container = openContainer(entry.getKey())) {
+                for (BlobLocation location : entry.getValue()) {
+                    blobs.put(location.blobId(),
+                            new CachedMetadataBlob(db, container.get(location.offset())));
+                }
+            }
+        }
+        List<Blob> out = new ArrayList<>(blobIds.length);
+        for (long blobId : blobIds) {
+            out.add(blobs.get(blobId));
+        }
+        return out;
+    }
+
+    /**
+     * Whether we have to read the container to construct a blob, ie. it's
+     * archived but we didn't record its size and mtime.
+     */
+    private static boolean needsContainer(BlobLocation location) {
+        return !location.isLegacy() && !location.isInStagingArea() && !location.hasMetadata();
+    }
+
+    /**
+     * Blobs in the staging area have digests recorded at put time, so wrap
+     * them to save re-reading the file to calculate them.
+     */
+    private Blob stagedBlob(long blobId) {
+        return new CachedMetadataBlob(db, new FileBlob(blobId, stagingPath(blobId)));
+    }
+
+    private Blob get(BlobLocation location) {
+        long blobId = location.blobId();
+        if (location.isLegacy()) {
+            return new FileBlob(blobId, Paths.get(location.legacyPath()));
+        }
         if (location.isInStagingArea()) {
             /*
              * FIXME: there's a race here that will need a minor redesign to fix:
@@ -158,13 +258,75 @@ public class LocalBlobStore implements BlobStore {
              * 3. client now calls openChannel() and gets file not found error
              *
              */
-            return new FileBlob(blobId, stagingPath(blobId));
+            return stagedBlob(blobId);
         }
-        try (Container container = openContainer(location.containerId())) {
-            Blob blob = container.get(location.offset());
-            return new CachedMetadataBlob(db, blob);
+        // size and mtime were recorded at archive time so there's no need
+        // to touch the container until the blob is actually read
+        Path path = tarPath(masterRoots.get(0), location.containerId());
+        Blob blob = new TarBlob(channelCache, path,
+                location.offset() + TarContainer.HEADER_LENGTH, blobId,
+                location.size(), FileTime.fromMillis(location.created().getTime()));
+        return new CachedMetadataBlob(db, blob);
+    }
+
+    /**
+     * Finds where a blob is stored, consulting the location cache before the
+     * database.
+     *
+     * @return the location or null if the blob does not exist
+     */
+    BlobLocation locate(long blobId) {
+        BlobLocation location = locationCache.get(blobId);
+        if (location != null) {
+            return location;
         }
+        String legacyPath = db.locateLegacy(blobId);
+        if (legacyPath != null) {
+            location = new BlobLocation(blobId, legacyPath);
+        } else {
+            location = db.locateBlob(blobId);
+        }
+        locationCache.put(location);
+        return location;
+    }
 
+    /**
+     * Finds where a batch of blobs are stored. Cache misses are resolved with
+     * bulk database queries rather than one query per blob.
+     *
+     * @return map of blob id to location, missing blobs are omitted
+     */
+    Map<Long, BlobLocation> locateAll(long... blobIds) {
+        Map<Long, BlobLocation> locations = new HashMap<>();
+        Set<Long> misses = new LinkedHashSet<>();
+        for (long blobId : blobIds) {
+            if (locations.containsKey(blobId)) {
+                continue;
+            }
+            BlobLocation location = locationCache.get(blobId);
+            if (location != null) {
+                locations.put(blobId, location);
+            } else {
+                misses.add(blobId);
+            }
+        }
+        if (misses.isEmpty()) {
+            return locations;
+        }
+        for (BlobLocation location : db.locateBlobs(new ArrayList<>(misses))) {
+            locations.put(location.blobId(), location);
+            locationCache.put(location);
+        }
+        misses.removeAll(locations.keySet());
+        if (!misses.isEmpty()) {
+            for (Map.Entry<Long, String> entry : db.locateLegacyBlobs(
+                    new ArrayList<>(misses)).entrySet()) {
+                BlobLocation location = new BlobLocation(entry.getKey(), entry.getValue());
+                locations.put(location.blobId(), location);
+                locationCache.put(location);
+            }
+        }
+        return locations;
     }
 
     Path tarPath(Path areaRoot, long containerId) {
@@ -179,8 +341,7 @@ public class LocalBlobStore implements BlobStore {
 
     private Container openContainer(long containerId) throws IOException {
         Path path = tarPath(masterRoots.get(0), containerId);
-        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
-        return new TarContainer(containerId, path, channel);
+        return new TarContainer(containerId, path, channelCache);
     }
 
     @Override
@@ -195,7 +356,7 @@ public class LocalBlobStore implements BlobStore {
 
     @Override
     public BlobTx begin() {
-        long txId = db.nextId();
+        long txId = idAllocator.next();
         db.insertTx(txId, clientName);
         return new Tx(txId);
     }
@@ -301,7 +462,9 @@ public class LocalBlobStore implements BlobStore {
                 db.updateTxState(id, Database.TX_ROLLINGBACK);
                 for (Long blobId : db.listBlobsByTx(id)) {
                     Files.deleteIfExists(stagingPath(blobId));
+                    db.deleteDigests(blobId);
                     db.deleteBlob(blobId);
+                    locationCache.invalidate(blobId);
                 }
                 db.updateTxState(id, Database.TX_ROLLEDBACK);
             }
@@ -342,17 +505,130 @@ public class LocalBlobStore implements BlobStore {
              * 1. insert blobId into database (must be done prior to writing for crash cleanup)
              * 2. create parent directories
              * 3. write blob, if parent missing, retry from 2
+             * 4. record the size and digests calculated while writing
              *
              */
             state.assertOpen();
-            long blobId = db.nextId();
+            long blobId = idAllocator.next();
             db.insertBlob(blobId, this.id);
-            Path blobFile = stagingPath(blobId);
-            Files.createDirectories(blobFile.getParent());
-            try (WritableByteChannel channel = Files.newByteChannel(blobFile, CREATE_NEW, WRITE)) {
+            Files.createDirectories(stagingPath(blobId).getParent());
+            DigestingChannel written = writeBlob(blobId, output);
+            recordWrites(Arrays.asList(blobId), Arrays.asList(written));
+            return stagedBlob(blobId);
+        }
+
+        @Override
+        public List<Blob> putAll(Iterable<Path> sources) throws IOException {
+            return putAll(Writables.wrapAll(sources));
+        }
+
+        @Override
+        public List<Blob> putAll(List<Writable> outputs) throws IOException {
+            /*
+             * The same steps as put() but each done once for the whole batch:
+             * 1. reserve all the blob ids at once
+             * 2. insert every blob row in one batch (still prior to writing
+             *    any file, so rollback can find and clean up after a crash)
+             * 3. create each distinct parent directory
+             * 4. write the blobs in parallel on up to putThreads threads
+             * 5. record all the sizes and digests in one batch each
+             */
+            state.assertOpen();
+            if (outputs.isEmpty()) {
+                return new ArrayList<>();
+            }
+            List<Long> blobIds = idAllocator.next(outputs.size());
+            db.insertBlobs(blobIds, this.id);
+            Set<Path> parents = new HashSet<>();
+            for (long blobId : blobIds) {
+                Path parent = stagingPath(blobId).getParent();
+                if (parents.add(parent)) {
+                    Files.createDirectories(parent);
+                }
+            }
+            List<DigestingChannel> written;
+            if (putThreads == 0) {
+                written = new ArrayList<>(outputs.size());
+                for (int i = 0; i < outputs.size(); i++) {
+                    written.add(writeBlob(blobIds.get(i), outputs.get(i)));
+                }
+            } else {
+                List<Callable<DigestingChannel>> writes = new ArrayList<>(outputs.size());
+                for (int i = 0; i < outputs.size(); i++) {
+                    final long blobId = blobIds.get(i);
+                    final Writable output = outputs.get(i);
+                    writes.add(new Callable<DigestingChannel>() {
+                        @Override
+                        public DigestingChannel call() throws IOException {
+                            return writeBlob(blobId, output);
+                        }
+                    });
+                }
+                written = parallelWrite(writes);
+            }
+            recordWrites(blobIds, written);
+            List<Blob> blobs = new ArrayList<>(blobIds.size());
+            for (long blobId : blobIds) {
+                blobs.add(stagedBlob(blobId));
+            }
+            return blobs;
+        }
+
+        /**
+         * Writes a blob to the staging area, calculating its size and a digest
+         * for each configured algorithm on the way through.
+         *
+         * @return the closed channel the blob was written through
+         */
+        private DigestingChannel writeBlob(long blobId, Writable output) throws IOException {
+            try (DigestingChannel channel = new DigestingChannel(Files.newByteChannel(
+                    stagingPath(blobId), CREATE_NEW, WRITE), algorithms)) {
                 output.writeTo(channel);
+                return channel;
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void recordWrites(List<Long> blobIds, List<DigestingChannel> written) {
+            List<Long> sizes = new ArrayList<>(blobIds.size());
+            List<Long> ids = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for (int i = 0; i < blobIds.size(); i++) {
+                sizes.add(written.get(i).size());
+                for (Map.Entry<String, String> entry : written.get(i).digests().entrySet()) {
+                    ids.add(blobIds.get(i));
+                    names.add(entry.getKey());
+                    values.add(entry.getValue());
+                }
+            }
+            db.setBlobSizes(blobIds, sizes);
+            if (!ids.isEmpty()) {
+                db.insertDigests(ids, names, values);
+            }
+        }
+
+        private List<DigestingChannel> parallelWrite(List<Callable<DigestingChannel>> writes)
+                throws IOException {
+            ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(putThreads,
+                    writes.size()));
+            try {
+                List<DigestingChannel> results = new ArrayList<>(writes.size());
+                for (Future<DigestingChannel> future : threadPool.invokeAll(writes)) {
+                    results.add(future.get());
+                }
+                return results;
+            } catch (InterruptedException e) {
+                throw new RuntimeException("parallel put interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                threadPool.shutdown();
             }
-            return new FileBlob(blobId, blobFile);
         }
 
         /**
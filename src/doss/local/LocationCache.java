@@ -0,0 +1,72 @@
+package doss.local;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache of blob locations.
+ *
+ * Only immutable locations (legacy paths and blobs in archived containers) are
+ * cached. Blobs still in staging may be moved by the archiver at any time so
+ * are always looked up in the database.
+ */
+class LocationCache {
+    private final Map<Long, BlobLocation> locations;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    LocationCache(final int capacity) {
+        locations = new LinkedHashMap<Long, BlobLocation>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BlobLocation> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached location of a blob or null on a cache miss.
+     */
+    synchronized BlobLocation get(long blobId) {
+        BlobLocation location = locations.get(blobId);
+        if (location == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return location;
+    }
+
+    /**
+     * Caches a location if it will never change.
+     */
+    synchronized void put(BlobLocation location) {
+        if (location != null && location.isImmutable()) {
+            locations.put(location.blobId(), location);
+        }
+    }
+
+    synchronized void invalidate(long blobId) {
+        locations.remove(blobId);
+    }
+
+    synchronized int size() {
+        return locations.size();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LocationCache(size=" + size() + ", hits=" + hits() + ", misses=" + misses() + ")";
+    }
+}
@@ -0,0 +1,93 @@
+package doss.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only memory mapping of a whole container file.
+ *
+ * A single MappedByteBuffer can address at most 2GB so larger files are mapped
+ * as a series of fixed size segments. Reads that straddle a segment boundary
+ * are split across both segments. The mapping is never mutated so it may be
+ * shared by any number of concurrent readers.
+ */
+class MappedSegments {
+    static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long segmentSize;
+    private final long size;
+
+    MappedSegments(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedSegments(FileChannel channel, long segmentSize) throws IOException {
+        if (segmentSize < 1 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.size = channel.size();
+        int count = (int) ((size + segmentSize - 1) / segmentSize);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            segments[i] = channel.map(MapMode.READ_ONLY, start,
+                    Math.min(segmentSize, size - start));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Copies bytes starting at the given file position into dst.
+     *
+     * @return the number of bytes copied or -1 if position is at or past the
+     *         end of the file
+     */
+    int read(ByteBuffer dst, long position) {
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            ByteBuffer src = segments[(int) (position / segmentSize)].duplicate();
+            int start = (int) (position % segmentSize);
+            src.position(start);
+            if (src.remaining() > dst.remaining()) {
+                src.limit(start + dst.remaining());
+            }
+            int n = src.remaining();
+            dst.put(src);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Writes up to count bytes starting at the given file position straight
+     * from the mapping to the target. Stops at a segment boundary.
+     *
+     * @return the number of bytes written or -1 if position is at or past the
+     *         end of the file
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        ByteBuffer src = segments[(int) (position / segmentSize)].duplicate();
+        int start = (int) (position % segmentSize);
+        src.position(start);
+        if (src.remaining() > count) {
+            src.limit((int) (start + count));
+        }
+        return target.write(src);
+    }
+}
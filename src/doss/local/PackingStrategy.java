@@ -0,0 +1,29 @@
+package doss.local;
+
+import java.util.List;
+
+import doss.local.Database.UnassignedBlob;
+
+/**
+ * Decides how blobs awaiting archiving are laid out in containers.
+ *
+ * The strategy splits the candidates into runs of blobs that should sit next
+ * to each other, in the order they should be written. The archiver appends
+ * runs to containers in that order and won't let a run straddle two
+ * containers if it would fit in a container of its own. Runs bigger than a
+ * whole container are split wherever the container fills up.
+ *
+ * Within a container blobs are written in transaction then blob id order, so
+ * runs that don't follow that order only decide which container each blob
+ * goes in, not where in the container it ends up.
+ */
+public interface PackingStrategy {
+
+    /**
+     * @param candidates
+     *            committed blobs not yet assigned to a container, in blob id
+     *            order
+     * @return the candidates grouped into runs
+     */
+    List<List<UnassignedBlob>> runs(List<UnassignedBlob> candidates);
+}
@@ -3,12 +3,19 @@ package doss.local;
 import static java.nio.file.StandardOpenOption.READ;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.Date;
@@ -30,6 +37,17 @@ public class Scrubber {
     private boolean skipDbUpdate = false;
     private long showLastAudit = 0;
     private boolean listFailedAudits = false;
+    private int readersPerFs;
+    private final Map<Path, Semaphore> readers = new HashMap<>();
+    private Throttle throttle = new Throttle(0);
+    private int sampleRate = 0; // blobs per hour, or 0 to scrub whole containers
+    private int sampleBoost = 4; // how much harder to sample where samples recently failed
+    private static final int MAX_SAMPLE_ATTEMPTS = 1000;
+    private long sampleFailureWindow = DAY;
+    private final Random random = new Random();
+    private long sampled = 0;
+    private long sampleFailures = 0;
+    private volatile boolean stopped = false;
 
     public Scrubber(BlobStore blobStore) {
         if (!(blobStore instanceof LocalBlobStore)) {
@@ -38,11 +56,12 @@ public class Scrubber {
         }
         this.blobStore = (LocalBlobStore) blobStore;
         db = this.blobStore.db;
-        preferredAlgorithm = this.blobStore.getPreferredAlgorithm();
+        preferredAlgorithm = Digests.canonicalizeAlgorithm(this.blobStore.getPreferredAlgorithm());
         if (this.blobStore.masterRoots.isEmpty()) {
             throw new IllegalArgumentException(
                     "scrubber can only be run on a blobstore with at least one master filesystem configured");
         }
+        setReadersPerFilesystem(1);
     }
 
     public void run() throws IOException {
@@ -53,7 +72,7 @@ public class Scrubber {
                 System.out.println("Last Audit for " + showLastAudit + " was " + db.getLastAuditTime(showLastAudit)
                     + " and the result was " + db.getLastAuditResult(showLastAudit));
                 System.out.println("\tAlgorithm " + preferredAlgorithm + " Digest "
-                    + db.getContainerDigest(showLastAudit,preferredAlgorithm));
+                    + db.findContainerDigest(showLastAudit,preferredAlgorithm));
             }
         } else if (listFailedAudits) {
             List<Long> failedAuditList = db.getFailedAudits();
@@ -68,6 +87,18 @@ public class Scrubber {
             } else {
                 System.out.println("No failed Audits");
             }
+            Date since = new Date(System.currentTimeMillis() - sampleFailureWindow);
+            List<Long> sampleFailedList = db.findContainersWithFailedSamples(since);
+            if (sampleFailedList.size() > 0) {
+                System.out.println("There are " + sampleFailedList.size()
+                    + " containers with blobs that failed sampling since " + since);
+                for (long containerId : sampleFailedList) {
+                    System.out.println("\t" + containerId);
+                }
+                System.out.println("\ton filesystems " + db.findFilesystemsWithFailedSamples(since));
+            } else {
+                System.out.println("No failed samples since " + since);
+            }
         } else if (singleContainer >0) {
             logger.info("Scrubber running in one shot mode (-i)");
             try {
@@ -81,12 +112,12 @@ public class Scrubber {
             boolean result = verifyContainerAndContents(singleContainer);
             if (!skipDbUpdate) {
                 logger.info("Updating Audit Result for Container " + singleContainer + " to " + result);
-                synchronized (db) {
-                    db.insertAuditResult(singleContainer,preferredAlgorithm,new java.util.Date(),result);
-                }
+                db.insertAuditResult(singleContainer,preferredAlgorithm,new java.util.Date(),result);
             } else {
                 logger.info("not storing Audit Result " + result + " for container " + singleContainer);
             }
+        } else if (sampleRate > 0) {
+            sampleContinuously();
         } else { 
             logger.info("Scrubber running in batch mode - " + containerLimit + " Container(s), " + auditCutoff/DAY + " days since last");
             verifyContainers();
@@ -97,28 +128,63 @@ public class Scrubber {
         // * verify every blob against db entry	
         // * flag errors at container level
     public void verifyContainers() throws IOException {
-        List<Long> containerIds = db.findContainersByState(Database.CNT_ARCHIVED);
-        logger.info("Verify phase: found " + containerIds.size() + " containers to scrub, verifying " + containerLimit);
-        int loops = 0;
-        for (long containerId : containerIds) {
-            Date cutoff = new Date(System.currentTimeMillis() - auditCutoff);
-            Date lastAuditTime = db.getLastAuditTime(containerId);
-            if (lastAuditTime != null && lastAuditTime.after(cutoff)) {
-                logger.info("Container " + containerId + " audited recently, skipping");
-                continue;
-            }
-            boolean result = verifyContainerAndContents(containerId);
-            if (!skipDbUpdate) {
-                synchronized (db) {
-                    db.insertAuditResult(containerId,preferredAlgorithm,new java.util.Date(),result);
+        Date cutoff = new Date(System.currentTimeMillis() - auditCutoff);
+        List<Long> containerIds = db.findContainersDueForAudit(Database.CNT_ARCHIVED, cutoff,
+            containerLimit);
+        logger.info("Verify phase: found " + containerIds.size() + " containers due for audit, limit " + containerLimit);
+        List<Callable<Void>> audits = new ArrayList<>();
+        for (final long containerId : containerIds) {
+            audits.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    auditContainer(containerId);
+                    return null;
+                }
+            });
+        }
+        if (threads == 0) {
+            for (Callable<Void> audit : audits) {
+                try {
+                    audit.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
                 }
-            } else {
-                logger.info("not storing " + preferredAlgorithm + " Audit Result " + result + " for container " + containerId);
             }
-            loops++;
-            if (loops >= containerLimit) {
-                    break;
-            } 
+        } else {
+            parallelVerifyContainers(audits);
+        }
+    }
+
+    private void parallelVerifyContainers(List<Callable<Void>> audits) throws IOException {
+        logger.info("Running parallel verify with " + threads + " threads, " + readersPerFs
+                + " readers per filesystem");
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : threadPool.invokeAll(audits)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("parallel verify interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // stop the remaining audits rather than leave them reading
+            // after the first failure has been thrown
+            threadPool.shutdownNow();
+        }
+    }
+
+    private void auditContainer(long containerId) throws IOException {
+        boolean result = verifyContainerAndContents(containerId);
+        if (!skipDbUpdate) {
+            db.insertAuditResult(containerId,preferredAlgorithm,new java.util.Date(),result);
+        } else {
+            logger.info("not storing " + preferredAlgorithm + " Audit Result " + result + " for container " + containerId);
         }
     }
 
@@ -137,73 +203,272 @@ public class Scrubber {
             }
         }
         for (Path fsRoot : this.blobStore.masterRoots) {
-       	    Path tarPath =  blobStore.tarPath(fsRoot, containerId);
-            logger.info("Verifying container " + containerId + " @ " + tarPath);
-            // Do whole container verify first, streaming io/caching etc etc
-            try (FileChannel tarChan = FileChannel.open(tarPath, READ)) {
-                String digest = db.getContainerDigest(containerId,preferredAlgorithm);
-                if (digest == null) {
-                    logger.info("NEW digest for container " + containerId + " @ " + tarPath);
-                    String containerDigest = Digests.calculate(preferredAlgorithm, tarChan);
-                    digest = containerDigest;
-                    if (!skipDbUpdate) {
-                        synchronized (db) {
-                            db.insertContainerDigest(containerId,preferredAlgorithm,containerDigest);
-                        }
-                    } else {
-                        logger.info("not storing NEW digest " + preferredAlgorithm + " " + containerDigest + " for container " + containerId + " @ " + tarPath);
-                    }
-                    // no verify here, as digest has only just been created, it can be checked next time
-                } else {
-                    String containerDigest = Digests.calculate(preferredAlgorithm, tarChan);
-                    if (!containerDigest.equals(digest)) {
-                        logger.info("Verify failed for Container " + containerId
-                            + " at " + tarPath + " using " + preferredAlgorithm
-                            + ", expected " + digest + " but got " + containerDigest);
-                        return(false);
-                    } else {
-                        logger.info("Verify passed for container " + containerId + " @ " + tarPath);
-                    }
+            // only let so many threads read from each filesystem at once so
+            // reads stay sequential rather than seeking between containers
+            Semaphore reader = readers.get(fsRoot);
+            try {
+                reader.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting to read " + fsRoot);
+            }
+            try {
+                if (!verifyReplica(containerId, fsRoot)) {
+                    return(false);
                 }
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-            // Now do each blob in the container
-            try (TarContainer tar = new TarContainer(containerId, tarPath, FileChannel.open(
-                tarPath, READ))) {
-                logger.info("Verifying blobs in container " + containerId + " @ " + tarPath);
-                Iterator<Blob> it = tar.iterator();
-                while(it.hasNext()) {
-                    Blob tarBlob = it.next();
-                    String digest = db.getDigest(tarBlob.id(),preferredAlgorithm);
-                    if (digest == null) {
-                        String tarDigest = Digests.calculate(preferredAlgorithm, tarBlob);
-                        if (!skipDbUpdate) {
-                            synchronized (db) {
-                                db.insertDigest(tarBlob.id(),preferredAlgorithm,tarDigest);
-                            }
-                        }
-                        // no need to verify, digest is newly created
-                    } else {
-                        String tarDigest = Digests.calculate(preferredAlgorithm, tarBlob);
-                        if (!digest.equals(tarDigest)) {
-                            logger.info("Verify failed for blob " + tarBlob.id()
-                                + " in container " + tarPath + " using " + preferredAlgorithm
-                                + ", expected " + digest + " but got " + tarDigest);
-                            return(false);
-                        } else {
-                            //logger.info("Verify for Blob " + tarBlob.id() + " in Container " + containerId + " successful");
-                        }
-                    }
+            } finally {
+                reader.release();
+            }
+        }
+        return(true);
+    }
+
+    private boolean verifyReplica(long containerId, Path fsRoot) throws IOException {
+        Path tarPath =  blobStore.tarPath(fsRoot, containerId);
+        logger.info("Verifying container " + containerId + " @ " + tarPath);
+        // One sequential pass digests the whole container and each blob in it
+        TarDigester digester;
+        try (FileChannel tarChan = FileChannel.open(tarPath, READ)) {
+            digester = TarDigester.digest(preferredAlgorithm, throttle.wrap(tarChan));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        if (!digester.isComplete()) {
+            logger.info("Verify failed for container " + containerId + " at " + tarPath
+                + (digester.isCorrupt() ? ", damaged record header" : ", no end of archive marker")
+                + " after " + digester.records().size() + " blobs");
+            return(false);
+        }
+        String containerDigest = digester.containerDigest();
+        String digest = db.findContainerDigest(containerId,preferredAlgorithm);
+        if (digest == null) {
+            logger.info("NEW digest for container " + containerId + " @ " + tarPath);
+            if (!skipDbUpdate) {
+                db.insertContainerDigest(containerId,preferredAlgorithm,containerDigest);
+            } else {
+                logger.info("not storing NEW digest " + preferredAlgorithm + " " + containerDigest + " for container " + containerId + " @ " + tarPath);
+            }
+            // no verify here, as digest has only just been created, it can be checked next time
+        } else if (!containerDigest.equals(digest)) {
+            logger.info("Verify failed for Container " + containerId
+                + " at " + tarPath + " using " + preferredAlgorithm
+                + ", expected " + digest + " but got " + containerDigest);
+            return(false);
+        } else {
+            logger.info("Verify passed for container " + containerId + " @ " + tarPath);
+        }
+        // Now check each blob's digest from the same pass
+        for (TarDigester.Record record : digester.records()) {
+            digest = db.findDigest(record.blobId,preferredAlgorithm);
+            if (digest == null) {
+                if (!skipDbUpdate) {
+                    db.insertDigest(record.blobId,preferredAlgorithm,record.digest);
                 }
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+                // no need to verify, digest is newly created
+            } else if (!digest.equals(record.digest)) {
+                logger.info("Verify failed for blob " + record.blobId
+                    + " in container " + tarPath + " using " + preferredAlgorithm
+                    + ", expected " + digest + " but got " + record.digest);
+                return(false);
             }
-            logger.info("Verify blobs finished for container " + containerId + " @ " + tarPath);
         }
+        logger.info("Verify blobs finished for container " + containerId + " @ " + tarPath);
         return(true);
     }
     
+    /**
+     * Verifies a random sample of archived blobs, sampleRate an hour in
+     * batches about a minute apart, until stopped. Rather than reading every
+     * byte of every container this aims to catch bit-rot early at a small
+     * fraction of the I/O, so it can run alongside delivery.
+     */
+    public void sampleContinuously() throws IOException {
+        int batch = Math.max(1, (sampleRate + 59) / 60);
+        long interval = 3600000L * batch / sampleRate;
+        logger.info("Scrubber running in sampling mode - " + sampleRate + " blobs an hour, "
+            + batch + " every " + interval / 1000 + " seconds");
+        while (!stopped) {
+            long start = System.currentTimeMillis();
+            sample(batch);
+            long wait = start + interval - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies count blobs chosen at random from all archived containers
+     * against their digests on every master filesystem and records the
+     * results in sample_audits. Filesystems where a sample failed within the
+     * failure window get sampleBoost times as many samples, and containers
+     * where one failed share another count * (sampleBoost - 1) between them.
+     *
+     * @return the number of replicas that failed
+     */
+    public int sample(int count) throws IOException {
+        Date since = new Date(System.currentTimeMillis() - sampleFailureWindow);
+        List<Path> suspectRoots = new ArrayList<>();
+        for (String fs : db.findFilesystemsWithFailedSamples(since)) {
+            for (Path fsRoot : blobStore.masterRoots) {
+                if (fsRoot.toString().equals(fs)) {
+                    suspectRoots.add(fsRoot);
+                }
+            }
+        }
+        List<Long> suspectContainers = db.findContainersWithFailedSamples(since);
+        Long min = db.findMinBlobIdInContainerState(Database.CNT_ARCHIVED);
+        Long max = db.findMaxBlobIdInContainerState(Database.CNT_ARCHIVED);
+
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            Long blobId = min == null ? null : randomArchivedBlob(min, max);
+            if (blobId == null) {
+                logger.info("No archived blob found to sample");
+                break;
+            }
+            // only these uniform samples count towards the bound below
+            int failed = sampleBlob(blobId, blobStore.masterRoots);
+            sampled++;
+            if (failed > 0) {
+                sampleFailures++;
+            }
+            failures += failed;
+            for (int j = 1; j < sampleBoost && !suspectRoots.isEmpty(); j++) {
+                Long extra = randomArchivedBlob(min, max);
+                if (extra != null) {
+                    failures += sampleBlob(extra, suspectRoots);
+                }
+            }
+        }
+        // suspect containers share sampleBoost - 1 extra samples for every
+        // uniform one, so watching them scales with the sample rate
+        double perContainer = suspectContainers.isEmpty() ? 0
+            : (double) count * (sampleBoost - 1) / suspectContainers.size();
+        for (long containerId : suspectContainers) {
+            int extras = (int) perContainer
+                + (random.nextDouble() < perContainer - (int) perContainer ? 1 : 0);
+            int size = extras > 0 ? db.countBlobsByContainer(containerId) : 0;
+            for (int j = 0; j < extras && size > 0; j++) {
+                Long blobId = db.findBlobInContainerAt(containerId, random.nextInt(size));
+                if (blobId != null) {
+                    failures += sampleBlob(blobId, blobStore.masterRoots);
+                }
+            }
+        }
+        // with no failures in n samples the rule of three bounds the
+        // fraction of corrupt blobs below 3/n with 95% confidence
+        logger.info("Sampled " + count + " blobs with " + failures + " failed replicas, "
+            + suspectContainers.size() + " containers and " + suspectRoots.size()
+            + " filesystems under closer watch; " + sampleFailures + " of " + sampled
+            + " sampled so far failed"
+            + (sampleFailures == 0 && sampled > 0 ? ", corrupt fraction below "
+                + 3.0 / sampled + " with 95% confidence" : ""));
+        return failures;
+    }
+
+    /**
+     * Picks an archived blob uniformly at random by drawing ids from the
+     * archived range until one hits an archived blob. Each draw costs a
+     * primary key lookup rather than a scan of every blob.
+     *
+     * @return the blob id, or null if nothing was hit in MAX_SAMPLE_ATTEMPTS
+     */
+    private Long randomArchivedBlob(long min, long max) {
+        for (int attempt = 0; attempt < MAX_SAMPLE_ATTEMPTS; attempt++) {
+            long blobId = min + (long) (random.nextDouble() * (max - min + 1));
+            BlobLocation location = db.locateBlob(blobId);
+            if (location != null && location.containerState() != null
+                    && location.containerState() == Database.CNT_ARCHIVED) {
+                return blobId;
+            }
+        }
+        logger.warning("No archived blob found in " + MAX_SAMPLE_ATTEMPTS + " draws between "
+            + min + " and " + max);
+        return null;
+    }
+
+    private int sampleBlob(long blobId, List<Path> fsRoots) throws IOException {
+        BlobLocation location = db.locateBlob(blobId);
+        if (location == null || location.containerState() == null
+                || location.containerState() != Database.CNT_ARCHIVED) {
+            return 0;
+        }
+        String expected = db.findDigest(blobId, preferredAlgorithm);
+        int failures = 0;
+        for (Path fsRoot : fsRoots) {
+            String actual = sampleReplica(location, fsRoot);
+            boolean result;
+            if (expected == null && actual != null) {
+                if (!skipDbUpdate) {
+                    db.insertDigest(blobId, preferredAlgorithm, actual);
+                }
+                expected = actual;
+                result = true;
+            } else {
+                result = actual != null && actual.equals(expected);
+            }
+            if (!result) {
+                failures++;
+                logger.warning("Sample verify failed for blob " + blobId + " in container "
+                    + location.containerId() + " @ " + fsRoot + " using " + preferredAlgorithm
+                    + ", expected " + expected + " but got " + actual);
+            }
+            if (!skipDbUpdate) {
+                db.insertSampleAudit(blobId, location.containerId(), fsRoot.toString(),
+                    preferredAlgorithm, new Date(), result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Digests one replica of a blob, or returns null if it can't be read.
+     */
+    private String sampleReplica(BlobLocation location, Path fsRoot) throws IOException {
+        Path tarPath = blobStore.tarPath(fsRoot, location.containerId());
+        try (TarContainer tar = new TarContainer(location.containerId(), tarPath,
+                FileChannel.open(tarPath, READ))) {
+            Blob blob = tar.get(location.offset());
+            if (blob.id() != location.blobId()) {
+                logger.warning("Expected blob " + location.blobId() + " at offset "
+                    + location.offset() + " of " + tarPath + " but found " + blob.id());
+                return null;
+            }
+            try (ReadableByteChannel chan = blob.openChannel()) {
+                return Digests.calculate(preferredAlgorithm, throttle.wrap(chan));
+            }
+        } catch (NoSuchFileException e) {
+            logger.warning("Container " + location.containerId() + " does not exist at " + tarPath);
+            return null;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("Error reading blob " + location.blobId() + " from " + tarPath + ": " + e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setSampleRate(int blobsPerHour) {
+        this.sampleRate = blobsPerHour;
+    }
+
+    public void setSampleBoost(int boost) {
+        this.sampleBoost = boost;
+    }
+
+    /**
+     * Stops continuous sampling after the current batch.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
     public void setShowLastAudit(long containerId) {
         this.showLastAudit = containerId;
     }
@@ -229,8 +494,21 @@ public class Scrubber {
             this.listFailedAudits = listfailed;
     }
 
-        // multi threaded one day..
+    // containers to verify at once
     public void setThreads(int threads) {
         this.threads = threads;
     }
+
+    // containers read from each master filesystem at once
+    public void setReadersPerFilesystem(int readersPerFs) {
+        this.readersPerFs = readersPerFs;
+        for (Path fsRoot : blobStore.masterRoots) {
+            readers.put(fsRoot, new Semaphore(readersPerFs));
+        }
+    }
+
+    // limits reads across all threads, so audits don't starve delivery
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.throttle = new Throttle(bytesPerSecond);
+    }
 }
@@ -0,0 +1,51 @@
+package doss.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import doss.local.Database.UnassignedBlob;
+
+/**
+ * The built-in packing strategies.
+ */
+public enum StandardPacking implements PackingStrategy {
+
+    /**
+     * Keeps the blobs of each transaction together, as they're usually read
+     * together (eg. all the pages of a book). Transactions are packed in id
+     * order and their blobs in the order they were put, which is the order
+     * they're written to the container.
+     */
+    BY_TX {
+        @Override
+        public List<List<UnassignedBlob>> runs(List<UnassignedBlob> candidates) {
+            Map<Long, List<UnassignedBlob>> byTx = new TreeMap<>();
+            for (UnassignedBlob candidate : candidates) {
+                List<UnassignedBlob> run = byTx.get(candidate.txId());
+                if (run == null) {
+                    run = new ArrayList<>();
+                    byTx.put(candidate.txId(), run);
+                }
+                run.add(candidate);
+            }
+            return new ArrayList<>(byTx.values());
+        }
+    },
+
+    /**
+     * Packs blobs in id order with no attempt to keep anything together.
+     */
+    BY_BLOB_ID {
+        @Override
+        public List<List<UnassignedBlob>> runs(List<UnassignedBlob> candidates) {
+            List<List<UnassignedBlob>> runs = new ArrayList<>(candidates.size());
+            for (UnassignedBlob candidate : candidates) {
+                runs.add(Collections.singletonList(candidate));
+            }
+            return runs;
+        }
+    };
+}
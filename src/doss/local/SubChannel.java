@@ -1,22 +1,48 @@
 package doss.local;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import doss.core.TransferableChannel;
 
 /**
  * SubChannel is read only so write and truncate methods are not implemented
- * 
+ *
+ * When the container channel is a FileChannel reads are positional and the
+ * container channel's own position is never consulted, so many SubChannels
+ * can share the same underlying channel. A SubChannel may instead read from a
+ * shared memory mapping of the container, avoiding read syscalls altogether.
+ *
+ * Either way {@link #transferTo(long, WritableByteChannel)} passes the blob's
+ * range of the container to the target without reading it into a buffer.
  */
-class SubChannel implements SeekableByteChannel {
+class SubChannel implements SeekableByteChannel, TransferableChannel {
 
     final SeekableByteChannel containerChannel;
+    final MappedSegments segments;
+    final Closeable resource;
     final long offset;
     final long length;
+    private long position = 0;
+    private boolean open = true;
 
     SubChannel(SeekableByteChannel containerChannel, long blobOffset,
             long blobLength) throws IOException {
+        this(containerChannel, blobOffset, blobLength, containerChannel);
+    }
+
+    /**
+     * @param resource
+     *            released when this SubChannel is closed instead of the
+     *            container channel
+     */
+    SubChannel(SeekableByteChannel containerChannel, long blobOffset,
+            long blobLength, Closeable resource) throws IOException {
         if (blobOffset > containerChannel.size()
                 || blobLength > containerChannel.size() - blobOffset) {
             throw new IllegalArgumentException(
@@ -26,41 +52,97 @@ class SubChannel implements SeekableByteChannel {
         }
 
         this.containerChannel = containerChannel;
-        containerChannel.position(blobOffset);
+        this.segments = null;
+        this.resource = resource;
+        this.offset = blobOffset;
+        this.length = blobLength;
+    }
+
+    SubChannel(MappedSegments segments, long blobOffset, long blobLength,
+            Closeable resource) {
+        if (blobOffset > segments.size()
+                || blobLength > segments.size() - blobOffset) {
+            throw new IllegalArgumentException(
+                    "Can not create SubChannel for the mapped container size "
+                            + segments.size() + " with offset = "
+                            + blobOffset + " and length = " + blobLength);
+        }
+        this.containerChannel = null;
+        this.segments = segments;
+        this.resource = resource;
         this.offset = blobOffset;
         this.length = blobLength;
     }
 
     @Override
     public boolean isOpen() {
-        return containerChannel.isOpen();
+        return open && (containerChannel == null || containerChannel.isOpen());
     }
 
     @Override
     public void close() throws IOException {
-        containerChannel.close();
-
+        open = false;
+        resource.close();
     }
 
     @Override
     public int read(ByteBuffer b) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
         int originalLimit = b.limit();
-        long capacity = offset + length;
         try {
-            if (b.remaining() > capacity - containerChannel.position()) {
+            if (b.remaining() > length - position) {
                 // buffer has more space available than we've got left in the
                 // blob so temporarily change its limit so we don't read past
                 // the end of the blob
-                b.limit((int) (b.position() + capacity - containerChannel
-                        .position()));
+                b.limit((int) (b.position() + length - position));
+            }
+            int nbytes;
+            if (segments != null) {
+                nbytes = segments.read(b, offset + position);
+            } else if (containerChannel instanceof FileChannel) {
+                nbytes = ((FileChannel) containerChannel).read(b, offset + position);
+            } else {
+                containerChannel.position(offset + position);
+                nbytes = containerChannel.read(b);
             }
-            return containerChannel.read(b);
+            if (nbytes > 0) {
+                position += nbytes;
+            }
+            return nbytes;
         } finally {
             // restore the original limit
             b.limit(originalLimit);
         }
     }
 
+    @Override
+    public long transferTo(long count, WritableByteChannel target) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        count = Math.min(count, length - position);
+        long nbytes;
+        if (segments != null) {
+            nbytes = segments.transferTo(offset + position, count, target);
+        } else if (containerChannel instanceof FileChannel) {
+            nbytes = ((FileChannel) containerChannel).transferTo(offset + position, count, target);
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            nbytes = read(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return nbytes;
+        }
+        if (nbytes > 0) {
+            position += nbytes;
+        }
+        return nbytes;
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
         throw new NonWritableChannelException();
@@ -68,7 +150,7 @@ class SubChannel implements SeekableByteChannel {
 
     @Override
     public long position() throws IOException {
-        return containerChannel.position() - offset;
+        return position;
     }
 
     @Override
@@ -77,7 +159,8 @@ class SubChannel implements SeekableByteChannel {
         if ((newPosition < 0) || (newPosition > length)) {
             throw new IllegalArgumentException();
         }
-        return containerChannel.position(offset + newPosition);
+        position = newPosition;
+        return this;
     }
 
     @Override
@@ -19,24 +19,68 @@ import doss.Blob;
 public class TarBlob implements Blob {
     final private Path containerPath;
     final private long offset;
+    final private long id;
+    final private long size;
+    final private FileTime created;
     final private TarArchiveEntry tarEntry;
+    final private ChannelCache channelCache;
 
     public TarBlob(Path containerPath, long offset, TarArchiveEntry tarEntry) {
+        this(null, containerPath, offset, tarEntry);
+    }
+
+    /**
+     * @param channelCache
+     *            source of shared container channels, or null to open a
+     *            private channel each time the blob is read
+     */
+    TarBlob(ChannelCache channelCache, Path containerPath, long offset,
+            TarArchiveEntry tarEntry) {
+        this.channelCache = channelCache;
         this.containerPath = containerPath;
         this.offset = offset;
         this.tarEntry = tarEntry;
+        this.id = parseId(tarEntry.getName());
+        this.size = tarEntry.getSize();
+        this.created = FileTime.from(tarEntry.getModTime().getTime(),
+                TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    public long id() {
-        String name = tarEntry.getName();
+    /**
+     * Constructs a TarBlob from metadata recorded in the database without
+     * reading the record header from the container.
+     */
+    TarBlob(ChannelCache channelCache, Path containerPath, long offset,
+            long id, long size, FileTime created) {
+        this.channelCache = channelCache;
+        this.containerPath = containerPath;
+        this.offset = offset;
+        this.tarEntry = null;
+        this.id = id;
+        this.size = size;
+        this.created = created;
+    }
+
+    private static long parseId(String name) {
         int i = name.lastIndexOf('-');
         return Long.parseLong(name.substring(i + 1));
     }
 
+    @Override
+    public long id() {
+        return id;
+    }
+
+    /**
+     * Offset of the blob's data (not its record header) in the container.
+     */
+    long offset() {
+        return offset;
+    }
+
     @Override
     public long size() throws IOException {
-        return tarEntry.getSize();
+        return size;
     }
 
     @Override
@@ -46,14 +90,24 @@ public class TarBlob implements Blob {
 
     @Override
     public SeekableByteChannel openChannel() throws IOException {
-        return new SubChannel(FileChannel.open(containerPath), offset, size());
+        if (channelCache == null) {
+            return new SubChannel(FileChannel.open(containerPath), offset, size());
+        }
+        ChannelCache.Lease lease = channelCache.acquire(containerPath);
+        try {
+            if (channelCache.isMemoryMapped()) {
+                return new SubChannel(lease.segments(), offset, size(), lease);
+            }
+            return new SubChannel(lease.channel(), offset, size(), lease);
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
     }
 
     @Override
     public FileTime created() throws IOException {
-        return FileTime.from(tarEntry.getModTime().getTime(),
-                TimeUnit.MILLISECONDS);
-
+        return created;
     }
 
     @Override
@@ -66,9 +120,31 @@ public class TarBlob implements Blob {
     @Override
     public List<String> verify() throws IOException {
         List<String> errors = new ArrayList<String>();
-        if (!tarEntry.isFile()) {
-            errors.add("tar entry is not a file: " + tarEntry.getName() + " in " + containerPath);
+        TarArchiveEntry entry = tarEntry;
+        if (entry == null) {
+            entry = readEntry();
+        }
+        if (entry == null) {
+            errors.add("tar entry missing at offset " + offset + " in " + containerPath);
+        } else if (!entry.isFile()) {
+            errors.add("tar entry is not a file: " + entry.getName() + " in " + containerPath);
+        } else {
+            if (parseId(entry.getName()) != id) {
+                errors.add("tar entry " + entry.getName() + " in " + containerPath
+                        + " does not match blob id " + id);
+            }
+            if (entry.getSize() != size) {
+                errors.add("tar entry size " + entry.getSize() + " in " + containerPath
+                        + " does not match recorded size " + size);
+            }
         }
         return errors;
     }
+
+    private TarArchiveEntry readEntry() throws IOException {
+        try (TarContainer container = new TarContainer(-1, containerPath,
+                FileChannel.open(containerPath))) {
+            return container.readEntry(offset - TarContainer.HEADER_LENGTH);
+        }
+    }
 }
@@ -1,12 +1,15 @@
 package doss.local;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.logging.Logger;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 
@@ -17,13 +20,16 @@ import doss.Writable;
 import doss.core.Writables;
 
 public class TarContainer implements Container {
+    private final static Logger logger = Logger.getLogger(TarContainer.class.getName());
 
     final private Path path;
     final private long id;
     final private FileChannel channel;
+    final private Closeable resource;
+    final private ChannelCache channelCache;
     final private ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
     private static final int BLOCK_SIZE = 512;
-    private static final int HEADER_LENGTH = BLOCK_SIZE;
+    static final int HEADER_LENGTH = BLOCK_SIZE;
     private static final int FOOTER_LENGTH = 2 * BLOCK_SIZE;
     private static final byte[] FOOTER_BYTES = new byte[FOOTER_LENGTH];
 
@@ -31,30 +37,48 @@ public class TarContainer implements Container {
         this.path = path;
         this.id = id;
         this.channel = channel;
+        this.resource = channel;
+        this.channelCache = null;
+    }
+
+    /**
+     * Opens a container for reading using a shared channel from the cache.
+     * Blobs read from this container will also share the channel.
+     */
+    TarContainer(long id, Path path, ChannelCache channelCache) throws IOException {
+        ChannelCache.Lease lease = channelCache.acquire(path);
+        this.path = path;
+        this.id = id;
+        this.channel = lease.channel();
+        this.resource = lease;
+        this.channelCache = channelCache;
     }
 
     @Override
     public synchronized void close() throws IOException {
-        channel.close();
+        resource.close();
     }
 
-    private synchronized TarArchiveEntry readEntry(long offset)
+    /**
+     * Reads the record header at the given offset. Uses a positional read into
+     * a fresh buffer so it is safe to call concurrently and on a channel shared
+     * with other readers.
+     */
+    TarArchiveEntry readEntry(long offset)
             throws IOException {
-        channel.position(offset);
-        headerBuffer.clear();
-        while (headerBuffer.hasRemaining()) {
-            int nbytes = channel.read(headerBuffer);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        while (buffer.hasRemaining()) {
+            int nbytes = channel.read(buffer, offset + buffer.position());
             if (nbytes == -1) {
                 return null; // end of file
             }
         }
-        headerBuffer.flip();
-        return new TarArchiveEntry(headerBuffer.array());
+        return new TarArchiveEntry(buffer.array());
     }
 
     @Override
     public Blob get(long offset) throws IOException {
-        return new TarBlob(path, offset + HEADER_LENGTH,
+        return new TarBlob(channelCache, path, offset + HEADER_LENGTH,
                 readEntry(offset));
     }
 
@@ -85,19 +109,31 @@ public class TarContainer implements Container {
      * Write the 1024 zero byte end of archive marker.
      */
     private void writeArchiveFooter() throws IOException {
-        channel.write(ByteBuffer.wrap(FOOTER_BYTES));
+        channel.write(archiveFooter());
+    }
+
+    static ByteBuffer archiveFooter() {
+        return ByteBuffer.wrap(FOOTER_BYTES).asReadOnlyBuffer();
     }
 
     private void writeRecordHeader(long blobId, SizedWritable output)
             throws IOException {
-        TarArchiveEntry entry = new TarArchiveEntry("nla.doss-" + this.id + "/nla.blob-" + blobId);
+        headerBuffer.clear();
+        encodeRecordHeader(headerBuffer, this.id, blobId, output);
+        channel.write(headerBuffer);
+    }
+
+    /**
+     * Fills buffer with the tar header for a blob record.
+     */
+    static void encodeRecordHeader(ByteBuffer buffer, long containerId, long blobId,
+            SizedWritable output) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry("nla.doss-" + containerId + "/nla.blob-" + blobId);
         if (output instanceof Timestamped) {
             entry.setModTime(((Timestamped) output).created().toMillis());
         }
         entry.setSize(output.size());
-        headerBuffer.clear();
-        entry.writeEntryHeader(headerBuffer.array());
-        channel.write(headerBuffer);
+        entry.writeEntryHeader(buffer.array());
     }
 
     @Override
@@ -110,8 +146,22 @@ public class TarContainer implements Container {
         return channel.size();
     }
 
+    /**
+     * Iterates over the blobs in the container. If the container has an index
+     * the blobs are read from that rather than from each record header. An
+     * index that can't be read is logged and the headers are walked instead.
+     */
     @Override
     public Iterator<Blob> iterator() {
+        Path indexPath = ContainerIndex.pathFor(path);
+        if (Files.exists(indexPath)) {
+            try {
+                return indexIterator(ContainerIndex.read(indexPath));
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Unable to read " + indexPath + ", walking the tar headers instead: "
+                        + e);
+            }
+        }
         final long size;
         try {
             size = size();
@@ -128,7 +178,7 @@ public class TarContainer implements Container {
                     if (entry == null) {
                         entry = readEntry(pos);
                     }
-                    if (entry.getName().isEmpty()) {
+                    if (entry == null || entry.getName().isEmpty()) {
                         return false;
                     }
                     return pos < size;
@@ -143,7 +193,7 @@ public class TarContainer implements Container {
                     if (!hasNext()) {
                         throw new NoSuchElementException();
                     }
-                    Blob blob = new TarBlob(path, pos + HEADER_LENGTH, entry);
+                    Blob blob = new TarBlob(channelCache, path, pos + HEADER_LENGTH, entry);
                     pos += HEADER_LENGTH;
                     pos += blob.size();
                     pos += calculatePadding(pos);
@@ -160,9 +210,31 @@ public class TarContainer implements Container {
         };
     }
 
+    private Iterator<Blob> indexIterator(ContainerIndex index) {
+        final Iterator<ContainerIndex.Entry> entries = index.entries.iterator();
+        return new Iterator<Blob>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Blob next() {
+                ContainerIndex.Entry entry = entries.next();
+                return new TarBlob(channelCache, path, entry.offset + HEADER_LENGTH,
+                        entry.blobId, entry.size, FileTime.fromMillis(entry.created));
+            }
+
+            @Override
+            public void remove() {
+            }
+        };
+    }
+
     @Override
     public void permanentlyDelete() throws IOException {
         Files.delete(path);
+        Files.deleteIfExists(ContainerIndex.pathFor(path));
     }
 
     public Path path() {
@@ -0,0 +1,167 @@
+package doss.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+/**
+ * Digests a tar container and each of the blobs in it in a single sequential
+ * pass. The bytes are fed to the container digest and, as the record
+ * headers go past, to a digest of the current record's data, so verifying a
+ * container and its contents needn't read it twice or seek between records.
+ */
+class TarDigester {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private final String algorithm;
+    private final MessageDigest containerDigest;
+    private final ByteBuffer header = ByteBuffer.allocate(TarContainer.HEADER_LENGTH);
+    private final List<Record> records = new ArrayList<>();
+    private MessageDigest blobDigest;
+    private long blobId;
+    private long size;
+    private long remaining;
+    private State state = State.HEADER;
+
+    private enum State {
+        HEADER, DATA, PADDING, END, CORRUPT
+    }
+
+    /**
+     * The digest of a record's data.
+     */
+    static class Record {
+        final long blobId;
+        final String digest;
+
+        Record(long blobId, String digest) {
+            this.blobId = blobId;
+            this.digest = digest;
+        }
+    }
+
+    TarDigester(String algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = Digests.canonicalizeAlgorithm(algorithm);
+        this.containerDigest = MessageDigest.getInstance(this.algorithm);
+    }
+
+    /**
+     * Reads a whole container from channel.
+     */
+    static TarDigester digest(String algorithm, ReadableByteChannel channel)
+            throws IOException, NoSuchAlgorithmException {
+        TarDigester digester = new TarDigester(algorithm);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (channel.read(buffer) > 0) {
+            buffer.flip();
+            digester.update(buffer);
+            buffer.clear();
+        }
+        return digester;
+    }
+
+    void update(ByteBuffer buffer) throws NoSuchAlgorithmException {
+        containerDigest.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            switch (state) {
+            case HEADER:
+                int n = Math.min(header.remaining(), buffer.remaining());
+                ByteBuffer src = buffer.duplicate();
+                src.limit(src.position() + n);
+                header.put(src);
+                buffer.position(buffer.position() + n);
+                if (!header.hasRemaining()) {
+                    startRecord();
+                }
+                break;
+            case DATA:
+                ByteBuffer data = buffer.duplicate();
+                data.limit((int) Math.min(data.limit(), data.position() + remaining));
+                remaining -= data.remaining();
+                buffer.position(data.limit());
+                blobDigest.update(data);
+                if (remaining == 0) {
+                    endRecord();
+                }
+                break;
+            case PADDING:
+                int skip = (int) Math.min(remaining, buffer.remaining());
+                buffer.position(buffer.position() + skip);
+                remaining -= skip;
+                if (remaining == 0) {
+                    state = State.HEADER;
+                }
+                break;
+            case END:
+            case CORRUPT:
+                buffer.position(buffer.limit());
+                break;
+            }
+        }
+    }
+
+    private void startRecord() throws NoSuchAlgorithmException {
+        TarArchiveEntry entry;
+        try {
+            entry = new TarArchiveEntry(header.array());
+            header.clear();
+            if (entry.getName().isEmpty()) {
+                state = State.END; // end of archive marker
+                return;
+            }
+            String name = entry.getName();
+            blobId = Long.parseLong(name.substring(name.lastIndexOf('-') + 1));
+        } catch (IllegalArgumentException e) {
+            // a damaged header; the rest is only fed to the container digest
+            state = State.CORRUPT;
+            return;
+        }
+        blobDigest = MessageDigest.getInstance(algorithm);
+        size = entry.getSize();
+        remaining = size;
+        state = State.DATA;
+        if (remaining == 0) {
+            endRecord();
+        }
+    }
+
+    private void endRecord() {
+        records.add(new Record(blobId, Digests.toHex(blobDigest)));
+        remaining = TarContainer.calculatePadding(size);
+        state = remaining == 0 ? State.HEADER : State.PADDING;
+    }
+
+    /**
+     * The records read in full so far, in the order they appear.
+     */
+    List<Record> records() {
+        return records;
+    }
+
+    /**
+     * Whether the end of archive marker has been read. False if a record
+     * header was damaged.
+     */
+    boolean isComplete() {
+        return state == State.END;
+    }
+
+    /**
+     * Whether a record header couldn't be parsed.
+     */
+    boolean isCorrupt() {
+        return state == State.CORRUPT;
+    }
+
+    /**
+     * Returns the digest of everything read. Can only be called once.
+     */
+    String containerDigest() {
+        return Digests.toHex(containerDigest);
+    }
+}
@@ -0,0 +1,266 @@
+package doss.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import doss.SizedWritable;
+import doss.Writable;
+import doss.core.Writables;
+
+/**
+ * Writes identical tar containers to several replicas in a single pass.
+ *
+ * Each blob is read once and its bytes are written to every replica channel
+ * as they go past, while a digest of the blob and a digest of the container as
+ * a whole are calculated. This saves reading every blob once per replica and
+ * then reading everything back again to digest it.
+ *
+ * Each replica is written by its own thread fed through a bounded queue so
+ * that when the replicas are on separate devices their writes and fsyncs
+ * overlap and the slowest device sets the pace rather than the sum of them.
+ *
+ * Unlike {@link TarContainer#put(long, Writable)} the end of archive footer is
+ * only written once, by {@link #finish()}. A write interrupted after a
+ * {@link #checkpoint()} can be carried on by a new writer with
+ * {@link #resume(FileChannel, long)}. The caller owns the replica
+ * channels and is responsible for closing them, after closing this writer.
+ */
+class TarFanOutWriter implements Closeable {
+    static final int QUEUE_DEPTH = 64;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer SYNC = ByteBuffer.allocate(0);
+    private final long containerId;
+    private final String algorithm;
+    private final MessageDigest containerDigest;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(TarContainer.HEADER_LENGTH);
+    private final List<BlockingQueue<ByteBuffer>> queues = new ArrayList<>();
+    private final List<Future<Void>> writers = new ArrayList<>();
+    private final ExecutorService threadPool;
+    private volatile CountDownLatch synced;
+    private long position = 0;
+
+    TarFanOutWriter(long containerId, List<FileChannel> replicas, String algorithm)
+            throws NoSuchAlgorithmException {
+        this.containerId = containerId;
+        this.algorithm = Digests.canonicalizeAlgorithm(algorithm);
+        this.containerDigest = MessageDigest.getInstance(this.algorithm);
+        threadPool = Executors.newFixedThreadPool(replicas.size());
+        for (final FileChannel replica : replicas) {
+            final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            queues.add(queue);
+            writers.add(threadPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    for (ByteBuffer buffer = queue.take(); buffer != END; buffer = queue.take()) {
+                        if (buffer == SYNC) {
+                            replica.force(false);
+                            synced.countDown();
+                        }
+                        while (buffer.hasRemaining()) {
+                            replica.write(buffer);
+                        }
+                    }
+                    replica.force(true);
+                    return null;
+                }
+            }));
+        }
+    }
+
+    /**
+     * The offset, size and digest of a record written to the container.
+     */
+    static class Record {
+        final long offset;
+        final long size;
+        final String digest;
+
+        Record(long offset, long size, String digest) {
+            this.offset = offset;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Carries on from the end of a partially written container. The replicas
+     * must already be truncated to a record boundary and positioned at the
+     * end. The existing contents are read back from one of them to bring the
+     * container digest up to date.
+     */
+    void resume(FileChannel replica, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        for (long pos = 0; pos < size;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - pos));
+            int n = replica.read(buffer, pos);
+            if (n < 0) {
+                throw new IOException("container " + containerId + " ended at " + pos
+                        + " before checkpoint " + size);
+            }
+            buffer.flip();
+            containerDigest.update(buffer);
+            pos += n;
+        }
+        position = size;
+    }
+
+    /**
+     * Waits for everything written so far to be synced to every replica.
+     *
+     * @return the number of bytes synced
+     */
+    long checkpoint() throws IOException {
+        synced = new CountDownLatch(queues.size());
+        for (int i = 0; i < queues.size(); i++) {
+            enqueue(i, SYNC);
+        }
+        try {
+            while (!synced.await(100, TimeUnit.MILLISECONDS)) {
+                for (Future<Void> writer : writers) {
+                    if (writer.isDone()) {
+                        await(writer);
+                        throw new IllegalStateException("replica writer exited early");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted writing container " + containerId);
+        }
+        return position;
+    }
+
+    /**
+     * Appends a blob to every replica.
+     */
+    Record put(long blobId, Writable data) throws IOException, NoSuchAlgorithmException {
+        SizedWritable output = Writables.toSized(data);
+        long offset = position;
+        headerBuffer.clear();
+        TarContainer.encodeRecordHeader(headerBuffer, containerId, blobId, output);
+        write(headerBuffer);
+        long start = position;
+        DigestingChannel body = new DigestingChannel(new ReplicaChannel(),
+                Collections.singletonList(algorithm));
+        output.writeTo(body);
+        long size = position - start;
+        if (size != output.size()) {
+            throw new IOException("blob " + blobId + " expected size " + output.size()
+                    + " but read " + size);
+        }
+        write(ByteBuffer.allocate((int) TarContainer.calculatePadding(position)));
+        return new Record(offset, size, body.digests().get(algorithm));
+    }
+
+    /**
+     * Writes the end of archive marker and waits for every replica to be
+     * written and synced to disk.
+     *
+     * @return the digest of the whole container
+     */
+    String finish() throws IOException {
+        write(TarContainer.archiveFooter());
+        for (int i = 0; i < queues.size(); i++) {
+            enqueue(i, END);
+        }
+        for (Future<Void> writer : writers) {
+            await(writer);
+        }
+        return Digests.toHex(containerDigest);
+    }
+
+    long size() {
+        return position;
+    }
+
+    /**
+     * Queues a copy of src to be written to every replica.
+     */
+    private int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        ByteBuffer copy = ByteBuffer.allocate(n);
+        copy.put(src.duplicate());
+        copy.flip();
+        containerDigest.update(src);
+        for (int i = 0; i < queues.size(); i++) {
+            enqueue(i, copy.duplicate());
+        }
+        position += n;
+        return n;
+    }
+
+    private void enqueue(int replica, ByteBuffer buffer) throws IOException {
+        try {
+            while (!queues.get(replica).offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                // queue is full, make sure it's because the writer is slow not dead
+                Future<Void> writer = writers.get(replica);
+                if (writer.isDone()) {
+                    await(writer);
+                    throw new IllegalStateException("replica writer exited early");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted writing container " + containerId);
+        }
+    }
+
+    private void await(Future<Void> writer) throws IOException {
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted writing container " + containerId);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the writer threads. If called before {@link #finish()} the
+     * replicas are left incomplete.
+     */
+    @Override
+    public void close() {
+        threadPool.shutdownNow();
+    }
+
+    /**
+     * Presents the set of replicas as a single channel for blobs to be
+     * written to.
+     */
+    private class ReplicaChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return TarFanOutWriter.this.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package doss.local;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Limits the rate at which some resource (files, bytes) is consumed by one
+ * or more threads, so background work like cleanup and scrubbing leaves
+ * enough I/O for ingest.
+ *
+ * Permits accrue continuously at the configured rate. Up to a second's worth
+ * can be banked while idle so short bursts aren't penalised.
+ */
+class Throttle {
+    private final double perSecond;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param perSecond
+     *            permits per second, or 0 for no limit
+     */
+    Throttle(double perSecond) {
+        this.perSecond = perSecond;
+        this.available = perSecond;
+    }
+
+    /**
+     * Takes the given number of permits, blocking until they would have
+     * accrued. Concurrent callers queue up behind each other's debts.
+     */
+    void acquire(long permits) throws InterruptedIOException {
+        if (perSecond <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            refill();
+            available -= permits;
+            wait = available >= 0 ? 0 : (long) (-available * 1000 / perSecond);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for throttle");
+            }
+        }
+    }
+
+    /**
+     * Wraps a channel so that reads from it take a permit per byte.
+     */
+    ReadableByteChannel wrap(final ReadableByteChannel channel) {
+        if (perSecond <= 0) {
+            return channel;
+        }
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = channel.read(dst);
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(perSecond, available + (now - lastRefill) * perSecond / 1e9);
+        lastRefill = now;
+    }
+}
@@ -43,9 +43,11 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -134,6 +136,20 @@ public class RemoteBlobStore implements BlobStore {
         }
     }
 
+    /**
+     * Stats each blob in turn. There's no batch RPC in the service yet, so
+     * this saves nothing over calling get() for each id.
+     */
+    @Override
+    public synchronized List<Blob> getAll(long... blobIds)
+            throws NoSuchBlobException, IOException {
+        List<Blob> blobs = new ArrayList<>(blobIds.length);
+        for (long blobId : blobIds) {
+            blobs.add(get(blobId));
+        }
+        return blobs;
+    }
+
     @Override
     public Blob getLegacy(Path legacyPath) throws NoSuchBlobException,
             IOException {
@@ -240,6 +256,20 @@ public class RemoteBlobStore implements BlobStore {
             return put(Writables.wrap(bytes));
         }
 
+        @Override
+        public List<Blob> putAll(List<Writable> outputs) throws IOException {
+            List<Blob> blobs = new ArrayList<>(outputs.size());
+            for (Writable output : outputs) {
+                blobs.add(put(output));
+            }
+            return blobs;
+        }
+
+        @Override
+        public List<Blob> putAll(Iterable<Path> sources) throws IOException {
+            return putAll(Writables.wrapAll(sources));
+        }
+
         @Override
         protected Transaction getCallbacks() {
             return new Transaction() {
@@ -2,12 +2,20 @@ package doss;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
+import doss.core.Writables;
 import doss.local.LocalBlobStore;
 
 public class BlobTest extends DOSSTest {
@@ -69,6 +77,54 @@ public class BlobTest extends DOSSTest {
         assertNotEquals(b.id(), b3.id());
     }
 
+    @Test
+    public void getAllReturnsBlobsInOrder() throws Exception {
+        long id1 = writeTempBlob(blobStore, "1").id();
+        long id2 = writeTempBlob(blobStore, "22").id();
+        Path legacy = folder.newFile().toPath();
+        Files.write(legacy, "333".getBytes(StandardCharsets.UTF_8));
+        long id3 = blobStore.getLegacy(legacy).id();
+
+        List<Blob> blobs = blobStore.getAll(id2, id3, id1, id2);
+        assertEquals(4, blobs.size());
+        assertEquals(id2, blobs.get(0).id());
+        assertEquals("22", slurp(blobs.get(0)));
+        assertEquals("333", slurp(blobs.get(1)));
+        assertEquals("1", slurp(blobs.get(2)));
+        assertEquals(id2, blobs.get(3).id());
+        assertTrue(blobStore.getAll().isEmpty());
+    }
+
+    @Test
+    public void putAllStoresBlobsInOrder() throws Exception {
+        List<Writable> outputs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            outputs.add(Writables.wrap("blob " + i));
+        }
+        Path file = folder.newFile().toPath();
+        Files.write(file, TEST_BYTES);
+        List<Blob> blobs;
+        List<Blob> fileBlobs;
+        try (BlobTx tx = blobStore.begin()) {
+            blobs = tx.putAll(outputs);
+            fileBlobs = tx.putAll(Arrays.asList(file, file));
+            tx.commit();
+        }
+        assertEquals(50, blobs.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("blob " + i, slurp(blobStore.get(blobs.get(i).id())));
+        }
+        assertEquals(2, fileBlobs.size());
+        assertNotEquals(fileBlobs.get(0).id(), fileBlobs.get(1).id());
+        assertEquals(TEST_STRING, slurp(blobStore.get(fileBlobs.get(1).id())));
+    }
+
+    @Test(expected = NoSuchBlobException.class)
+    public void getAllFailsOnBogusBlobs() throws Exception {
+        long id = writeTempBlob(blobStore, "1").id();
+        blobStore.getAll(id, 999);
+    }
+
     @Test(expected = NoSuchFileException.class)
     public void legacyPathsMustExist() throws Exception {
         blobStore.getLegacy(folder.getRoot().toPath().resolve("doesnotexist"));
@@ -17,6 +17,8 @@ import java.util.regex.Pattern;
 import org.apache.commons.compress.utils.Charsets;
 import org.junit.Test;
 
+import doss.local.Archiver;
+
 public class CLITest extends DOSSTest {
 
     @Test
@@ -26,6 +28,17 @@ public class CLITest extends DOSSTest {
         assertEquals(TEST_STRING, execute("cat", blob.id()));
     }
 
+    @Test
+    public void cliCatArchivedBlob() throws Exception {
+        Blob blob = writeTempBlob(blobStore, TEST_STRING);
+        new Archiver(blobStore).run(true);
+        assertEquals(TEST_STRING, execute("cat", blob.id()));
+        execute("get", blob.id());
+        Path file = Paths.get(Long.toString(blob.id()));
+        assertEquals(TEST_STRING, new String(Files.readAllBytes(file), Charsets.UTF_8));
+        Files.deleteIfExists(file);
+    }
+
     @Test
     public void cliGet() throws Exception {
         Blob blob = writeTempBlob(blobStore, TEST_STRING);
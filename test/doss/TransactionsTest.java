@@ -2,10 +2,15 @@ package doss;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
 import doss.core.Named;
+import doss.core.Writables;
 
 public class TransactionsTest extends DOSSTest {
     @Test(expected = NoSuchBlobException.class)
@@ -31,6 +36,24 @@ public class TransactionsTest extends DOSSTest {
         blobStore.get(blob.id());
     }
 
+    @Test
+    public void testRollbackOfPutAll() throws Exception {
+        List<Blob> blobs;
+        try (BlobTx tx = blobStore.begin()) {
+            blobs = tx.putAll(Arrays.asList(Writables.wrap(TEST_BYTES),
+                    Writables.wrap(TEST_BYTES), Writables.wrap(TEST_BYTES)));
+            tx.rollback();
+        }
+        for (Blob blob : blobs) {
+            try {
+                blobStore.get(blob.id());
+                fail("blob " + blob.id() + " survived rollback");
+            } catch (NoSuchBlobException e) {
+                // expected
+            }
+        }
+    }
+
     @Test
     public void transactionsAreResumable() throws Exception {
         long id;
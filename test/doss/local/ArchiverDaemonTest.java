@@ -0,0 +1,100 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import doss.BlobTx;
+import doss.DOSSTest;
+
+public class ArchiverDaemonTest extends DOSSTest {
+
+    @Test(timeout = 30000)
+    public void archivesContainersAsTheyFill() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = putBlobs(5);
+
+        ArchiverDaemon daemon = startDaemon(Long.MAX_VALUE);
+        try {
+            while (daemon.containersArchived() < 2) {
+                Thread.sleep(10);
+            }
+        } finally {
+            stopDaemon(daemon);
+        }
+
+        assertEquals(2, db.findContainersByState(Database.CNT_ARCHIVED).size());
+        assertEquals(4, daemon.blobsArchived());
+        assertTrue(daemon.bytesArchived() > 40);
+        assertEquals(0, daemon.queueDepth());
+        assertEquals(0, daemon.failures());
+        for (long blobId : blobIds.subList(0, 4)) {
+            assertFalse(Files.exists(blobStore.stagingPath(blobId)));
+            assertEquals(10, blobStore.get(blobId).size());
+        }
+        // below the staging threshold the last blob waits for its container to fill
+        assertNotNull(db.findAnOpenContainer());
+        assertTrue(Files.exists(blobStore.stagingPath(blobIds.get(4))));
+        assertEquals(10, db.getStagedBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void sealsEarlyOverStagingThreshold() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = putBlobs(5);
+
+        ArchiverDaemon daemon = startDaemon(5);
+        try {
+            while (daemon.containersArchived() < 3) {
+                Thread.sleep(10);
+            }
+        } finally {
+            stopDaemon(daemon);
+        }
+
+        assertEquals(3, db.findContainersByState(Database.CNT_ARCHIVED).size());
+        assertEquals(5, daemon.blobsArchived());
+        for (long blobId : blobIds) {
+            assertFalse(Files.exists(blobStore.stagingPath(blobId)));
+        }
+        assertEquals(0, db.getStagedBytes());
+    }
+
+    private List<Long> putBlobs(int count) throws Exception {
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < count; i++) {
+                blobIds.add(tx.put(new byte[10]).id());
+            }
+            tx.commit();
+        }
+        return blobIds;
+    }
+
+    private Thread daemonThread;
+
+    private ArchiverDaemon startDaemon(long stagingThreshold) {
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(15);
+        ArchiverDaemon daemon = new ArchiverDaemon(archiver, 2);
+        daemon.setPollInterval(20);
+        daemon.setStagingThreshold(stagingThreshold);
+        daemonThread = new Thread(daemon);
+        daemonThread.start();
+        return daemon;
+    }
+
+    private void stopDaemon(ArchiverDaemon daemon) throws InterruptedException {
+        daemon.stop();
+        daemonThread.join();
+    }
+}
@@ -6,6 +6,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
 
 import java.nio.file.Files;
 import java.nio.channels.FileChannel;
@@ -17,7 +20,11 @@ import static java.nio.file.StandardOpenOption.APPEND;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Date;
 
 import doss.Blob;
@@ -56,6 +63,7 @@ public class ArchiverTest extends DOSSTest {
             tx.commit();
         }
         Archiver archiver = new Archiver(blobStore);
+        archiver.setVerify(true);
 
         assertTrue(Files.exists(blobStore.stagingPath(blobId1)));
         assertEquals(3, db.findCommittedButUnassignedBlobs().size());
@@ -72,7 +80,7 @@ public class ArchiverTest extends DOSSTest {
         {
             Blob blob = blobStore.get(blobId1);
             assertEquals(TEST_STRING, slurp(blob));
-            assertTrue(blob instanceof FileBlob);
+            assertTrue(((CachedMetadataBlob) blob).blob instanceof FileBlob);
 
             BlobLocation loc = db.locateBlob(blobId1);
             assertNotNull(loc.containerId());
@@ -99,10 +107,10 @@ public class ArchiverTest extends DOSSTest {
 
             ContainerRecord c = db.findContainer(containerId);
             assertEquals(Database.CNT_WRITTEN, c.state());
-            assertEquals(40, db.getContainerDigest(containerId,blobStore.getPreferredAlgorithm()).length());
+            assertEquals(40, db.getContainerDigest(containerId, "sha1").length());
 
-            assertEquals(40, db.getDigest(blob.id(),blobStore.getPreferredAlgorithm()).length());
-            assertEquals(40, db.getDigest(blobId3,blobStore.getPreferredAlgorithm()).length());
+            assertEquals(40, db.getDigest(blob.id(), "sha1").length());
+            assertEquals(40, db.getDigest(blobId3, "sha1").length());
         }
 
         assertTrue(Files.exists(blobStore.stagingPath(blobId1)));
@@ -120,6 +128,18 @@ public class ArchiverTest extends DOSSTest {
 
             ContainerRecord c = db.findContainer(containerId);
             assertEquals(Database.CNT_ARCHIVED, c.state());
+
+            // size and mtime recorded in the database match the tar header
+            assertEquals((Long) (long) TEST_BYTES.length, loc.size());
+            try (TarContainer tar = new TarContainer(containerId,
+                    blobStore.tarPath(blobStore.masterRoots.get(0), containerId),
+                    blobStore.channelCache)) {
+                Blob tarBlob = tar.get(loc.offset());
+                assertEquals(tarBlob.size(), blob.size());
+                assertEquals(tarBlob.created(), blob.created());
+                assertEquals(loc.created().getTime(), tarBlob.created().toMillis());
+            }
+            assertTrue(blob.verify().isEmpty());
         }
 
         // ensure staging blob files were deleted
@@ -170,4 +190,353 @@ public class ArchiverTest extends DOSSTest {
             scrubber.run();
         }
     }
+
+    @Test
+    public void archivingRecordsOneDigestPerAlgorithm() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        long legacy;
+        try (BlobTx tx = blobStore.begin()) {
+            legacy = tx.put(TEST_BYTES).id();
+            tx.put(TEST_BYTES);
+            tx.commit();
+        }
+        // as recorded by archivers that used the configured spelling
+        String digest = db.getDigest(legacy, "sha1");
+        db.begin();
+        db.getHandle().execute("DELETE FROM digests WHERE blob_id = ? AND algorithm = 'sha1'",
+                legacy);
+        db.insertDigest(legacy, "SHA1", digest);
+        db.commit();
+
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setVerify(true);
+        archiver.run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+        new Scrubber(blobStore).run();
+        assertTrue(db.getLastAuditResult(containerId));
+
+        db.begin();
+        List<Map<String, Object>> rows = db.getHandle().select(
+                "SELECT blob_id, COUNT(*) AS n FROM digests"
+                + " GROUP BY blob_id, REPLACE(LOWER(algorithm), '-', '')");
+        List<Map<String, Object>> containerRows = db.getHandle().select(
+                "SELECT algorithm FROM container_digests WHERE container_id = ?", containerId);
+        db.commit();
+        // md5 and sha1 for each of the two blobs
+        assertEquals(4, rows.size());
+        for (Map<String, Object> row : rows) {
+            assertEquals(row.toString(), 1L, ((Number) row.get("n")).longValue());
+        }
+        assertEquals(digest, db.findDigest(legacy, "sha1"));
+        assertEquals(1, containerRows.size());
+        assertEquals("sha1", containerRows.get(0).get("algorithm"));
+    }
+
+    @Test
+    public void scrubberVerifiesContainersInParallel() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 8; i++) {
+                tx.put(TEST_BYTES);
+            }
+            tx.commit();
+        }
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(TEST_BYTES.length);
+        archiver.run(true);
+        List<Long> containerIds = db.findContainersByState(Database.CNT_ARCHIVED);
+        assertEquals(4, containerIds.size());
+
+        long corrupt = containerIds.get(2);
+        try (FileChannel tarChan = FileChannel.open(
+                blobStore.tarPath(blobStore.masterRoots.get(1), corrupt), WRITE, APPEND)) {
+            tarChan.write(ByteBuffer.wrap(TEST_BYTES));
+        }
+
+        // every intact replica is read in full, so with a budget of a third
+        // of those bytes per second the threads between them must take at
+        // least two seconds (a second's worth is available up front)
+        long intactBytes = 0;
+        for (long containerId : containerIds) {
+            if (containerId != corrupt) {
+                for (Path root : blobStore.masterRoots) {
+                    intactBytes += Files.size(blobStore.tarPath(root, containerId));
+                }
+            }
+        }
+        Scrubber scrubber = new Scrubber(blobStore);
+        scrubber.setThreads(3);
+        scrubber.setContainerLimit(10);
+        scrubber.setBytesPerSecond(intactBytes / 3);
+        long start = System.nanoTime();
+        scrubber.run();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("throttle shared by all threads, took " + elapsedMillis + "ms",
+                elapsedMillis >= 1900);
+        for (long containerId : containerIds) {
+            assertEquals(containerId != corrupt, db.getLastAuditResult(containerId));
+        }
+    }
+
+    @Test
+    public void scrubberFailsAuditOnDamagedRecordHeader() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 3; i++) {
+                blobIds.add(tx.put(TEST_BYTES).id());
+            }
+            tx.commit();
+        }
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+
+        // a non-octal digit in the mode field of the second record header
+        long offset = db.locateBlob(blobIds.get(1)).offset();
+        try (FileChannel tarChan = FileChannel.open(
+                blobStore.tarPath(blobStore.masterRoots.get(1), containerId), WRITE)) {
+            tarChan.write(ByteBuffer.wrap("x".getBytes()), offset + 100);
+        }
+        try (FileChannel tarChan = FileChannel.open(
+                blobStore.tarPath(blobStore.masterRoots.get(1), containerId))) {
+            TarDigester digester = TarDigester.digest("SHA1", tarChan);
+            assertTrue(digester.isCorrupt());
+            assertEquals(1, digester.records().size());
+        }
+
+        Scrubber scrubber = new Scrubber(blobStore);
+        scrubber.setContainerLimit(10);
+        scrubber.run();
+        assertFalse(db.getLastAuditResult(containerId));
+    }
+
+    @Test
+    public void scrubberSamplesBlobsAndWatchesWhereTheyFail() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 8; i++) {
+                blobIds.add(tx.put(TEST_BYTES).id());
+            }
+            tx.commit();
+        }
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(TEST_BYTES.length);
+        archiver.run(true);
+
+        Scrubber scrubber = new Scrubber(blobStore);
+        assertEquals(0, scrubber.sample(20));
+        Date since = new Date(System.currentTimeMillis() - 60000);
+        assertTrue(db.findContainersWithFailedSamples(since).isEmpty());
+
+        // flip a byte of one blob's data on the second filesystem
+        BlobLocation corrupt = db.locateBlob(blobIds.get(5));
+        Path badRoot = blobStore.masterRoots.get(1);
+        try (FileChannel tarChan = FileChannel.open(
+                blobStore.tarPath(badRoot, corrupt.containerId()), WRITE)) {
+            tarChan.write(ByteBuffer.wrap("X".getBytes()),
+                    corrupt.offset() + TarContainer.HEADER_LENGTH);
+        }
+        // eight blobs, so two hundred samples will all but certainly find it
+        assertTrue(scrubber.sample(200) > 0);
+        assertEquals(Arrays.asList(corrupt.containerId()),
+                db.findContainersWithFailedSamples(since));
+        assertEquals(Arrays.asList(badRoot.toString()),
+                db.findFilesystemsWithFailedSamples(since));
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobIds.get(5))));
+
+        // extra samples scale with the batch: five uniform ones on both
+        // filesystems, ten more on the suspect one and ten in the suspect
+        // container on both
+        scrubber.setSampleBoost(3);
+        long before = countSampleAudits(db);
+        scrubber.sample(5);
+        assertEquals(10 + 10 + 20, countSampleAudits(db) - before);
+    }
+
+    private static long countSampleAudits(Database db) {
+        db.begin();
+        try {
+            return ((Number) db.getHandle().select("SELECT COUNT(*) AS n FROM sample_audits")
+                    .get(0).get("n")).longValue();
+        } finally {
+            db.commit();
+        }
+    }
+
+    @Test
+    public void selectionPacksBlobsIntoContainers() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 10; i++) {
+                blobIds.add(tx.put(new byte[10]).id());
+            }
+            tx.commit();
+        }
+        // as if staged before sizes were recorded at put time
+        db.setBlobSizes(Arrays.asList(blobIds.get(4)), Arrays.asList((Long) null));
+
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(25);
+        archiver.selectionPhase();
+
+        List<Long> sealed = db.findContainersByState(Database.CNT_SEALED);
+        assertEquals(3, sealed.size());
+        for (long containerId : sealed) {
+            assertEquals(3, db.findBlobsByContainer(containerId).size());
+            assertEquals(30, db.getContainerSize(containerId));
+        }
+        Long open = db.findAnOpenContainer();
+        assertEquals(Arrays.asList(blobIds.get(9)), db.findBlobsByContainer(open));
+        assertEquals(0, db.findCommittedButUnassignedBlobs().size());
+
+        // the next run tops up the open container
+        try (BlobTx tx = blobStore.begin()) {
+            tx.put(new byte[10]);
+            tx.commit();
+        }
+        archiver.selectionPhase();
+        assertEquals(2, db.findBlobsByContainer(open).size());
+        assertEquals(20, db.getContainerSize(open));
+    }
+
+    @Test
+    public void selectionKeepsTransactionsTogether() throws Exception {
+        List<Long> a = new ArrayList<>();
+        List<Long> b = new ArrayList<>();
+        putInterleaved(a, b);
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(25);
+        archiver.selectionPhase();
+
+        Database db = ((LocalBlobStore) blobStore).db;
+        List<Long> sealed = db.findContainersByState(Database.CNT_SEALED);
+        assertEquals(1, sealed.size());
+        assertEquals(a, db.findBlobsByContainer(sealed.get(0)));
+        assertEquals(b, db.findBlobsByContainer(db.findAnOpenContainer()));
+    }
+
+    @Test
+    public void selectionCanPackInBlobOrder() throws Exception {
+        List<Long> a = new ArrayList<>();
+        List<Long> b = new ArrayList<>();
+        putInterleaved(a, b);
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerSize(25);
+        archiver.setPackingStrategy(StandardPacking.BY_BLOB_ID);
+        archiver.selectionPhase();
+
+        Database db = ((LocalBlobStore) blobStore).db;
+        List<Long> sealed = db.findContainersByState(Database.CNT_SEALED);
+        assertEquals(1, sealed.size());
+        assertEquals(Arrays.asList(a.get(0), a.get(1), b.get(0)),
+                db.findBlobsByContainer(sealed.get(0)));
+        assertEquals(b.subList(1, 3), db.findBlobsByContainer(db.findAnOpenContainer()));
+    }
+
+    @Test
+    public void selectionHonoursBlobCountAndDirectThreshold() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        long big;
+        List<Long> small = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            small.add(tx.put(new byte[1]).id());
+            big = tx.put(new byte[100]).id();
+            for (int i = 0; i < 4; i++) {
+                small.add(tx.put(new byte[1]).id());
+            }
+            tx.commit();
+        }
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setMaxContainerBlobs(2);
+        archiver.setDirectThreshold(50);
+        archiver.selectionPhase();
+
+        List<Long> sealed = db.findContainersByState(Database.CNT_SEALED);
+        assertEquals(3, sealed.size());
+        assertEquals(Arrays.asList(big), db.findBlobsByContainer(sealed.get(0)));
+        assertEquals(small.subList(0, 2), db.findBlobsByContainer(sealed.get(1)));
+        assertEquals(small.subList(2, 4), db.findBlobsByContainer(sealed.get(2)));
+        assertEquals(small.subList(4, 5), db.findBlobsByContainer(db.findAnOpenContainer()));
+    }
+
+    @Test
+    public void failedWritesResumeFromCheckpoint() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 4; i++) {
+                blobIds.add(tx.put(TEST_BYTES).id());
+            }
+            tx.commit();
+        }
+        Archiver archiver = new Archiver(blobStore);
+        archiver.setVerify(true);
+        archiver.setCheckpointInterval(1);
+        archiver.selectionPhase();
+        db.sealAllContainers();
+        long containerId = db.findContainersByState(Database.CNT_SEALED).get(0);
+
+        // corrupt the third blob so the write fails after checkpointing the first two
+        Path third = blobStore.stagingPath(blobIds.get(2));
+        Files.write(third, "corrupted!".getBytes("UTF-8"));
+        try {
+            archiver.dataCopyPhase();
+            fail("expected copy verify to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("copy verify failed"));
+        }
+        assertEquals(Arrays.asList(containerId), db.findContainersByState(Database.CNT_SEALED));
+        long checkpoint = db.getContainerCheckpoint(containerId);
+        assertEquals(2, db.countBlobsBeforeCheckpoint(containerId, checkpoint));
+
+        // the resumed write mustn't need to read the blobs before the checkpoint
+        Files.write(third, TEST_BYTES);
+        Files.delete(blobStore.stagingPath(blobIds.get(0)));
+        archiver.dataCopyPhase();
+
+        assertEquals(Arrays.asList(containerId), db.findContainersByState(Database.CNT_WRITTEN));
+        for (long blobId : blobIds) {
+            assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        }
+    }
+
+    @Test
+    public void pruneEmptyDirsTriesParentsAfterChildren() throws Exception {
+        Path root = folder.newFolder().toPath();
+        Path a = Files.createDirectories(root.resolve("1/2/a"));
+        Path b = Files.createDirectories(root.resolve("1/3"));
+        Files.createFile(b.resolve("blob"));
+        Path c = Files.createDirectories(root.resolve("4"));
+
+        assertEquals(3, Archiver.pruneEmptyDirs(Arrays.asList(root, b, c, a, a.getParent()), root));
+        assertFalse(Files.exists(root.resolve("1/2")));
+        assertFalse(Files.exists(c));
+        assertTrue(Files.exists(b.resolve("blob")));
+        assertTrue(Files.exists(root));
+    }
+
+    /**
+     * Puts two 10 byte blobs in one transaction and three 8 byte blobs in
+     * another, interleaving them so their ids are mixed up.
+     */
+    private void putInterleaved(List<Long> a, List<Long> b) throws Exception {
+        try (BlobTx txA = blobStore.begin(); BlobTx txB = blobStore.begin()) {
+            a.add(txA.put(new byte[10]).id());
+            b.add(txB.put(new byte[8]).id());
+            a.add(txA.put(new byte[10]).id());
+            b.add(txB.put(new byte[8]).id());
+            b.add(txB.put(new byte[8]).id());
+            txA.commit();
+            txB.commit();
+        }
+    }
 }
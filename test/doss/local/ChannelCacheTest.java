@@ -0,0 +1,108 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChannelCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    Path file1, file2, file3;
+
+    @Before
+    public void setUp() throws Exception {
+        file1 = folder.newFile().toPath();
+        file2 = folder.newFile().toPath();
+        file3 = folder.newFile().toPath();
+        for (Path file : new Path[] { file1, file2, file3 }) {
+            Files.write(file, "some test content".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void leasesShareChannel() throws Exception {
+        try (ChannelCache cache = new ChannelCache(10, 60000)) {
+            ChannelCache.Lease lease1 = cache.acquire(file1);
+            ChannelCache.Lease lease2 = cache.acquire(file1);
+            assertSame(lease1.channel(), lease2.channel());
+            assertEquals(1, cache.openChannels());
+            lease1.close();
+            lease1.close(); // double release should be harmless
+            assertTrue(lease2.channel().isOpen());
+            lease2.close();
+            assertTrue(lease2.channel().isOpen());
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIdleChannels() throws Exception {
+        try (ChannelCache cache = new ChannelCache(2, 60000)) {
+            FileChannel channel1;
+            try (ChannelCache.Lease lease = cache.acquire(file1)) {
+                channel1 = lease.channel();
+            }
+            FileChannel channel2;
+            try (ChannelCache.Lease lease = cache.acquire(file2)) {
+                channel2 = lease.channel();
+            }
+            try (ChannelCache.Lease lease = cache.acquire(file3)) {
+                assertEquals(2, cache.openChannels());
+            }
+            assertFalse("least recently used channel should be closed", channel1.isOpen());
+            assertTrue(channel2.isOpen());
+        }
+    }
+
+    @Test
+    public void neverClosesLeasedChannels() throws Exception {
+        try (ChannelCache cache = new ChannelCache(1, 60000)) {
+            ChannelCache.Lease lease1 = cache.acquire(file1);
+            ChannelCache.Lease lease2 = cache.acquire(file2);
+            assertTrue(lease1.channel().isOpen());
+            assertTrue(lease2.channel().isOpen());
+            lease1.close();
+            assertFalse(lease1.channel().isOpen());
+            assertEquals(1, cache.openChannels());
+            lease2.close();
+        }
+    }
+
+    @Test
+    public void reopensClosedChannels() throws Exception {
+        try (ChannelCache cache = new ChannelCache(10, 60000)) {
+            ChannelCache.Lease lease1 = cache.acquire(file1);
+            lease1.channel().close();
+            try (ChannelCache.Lease lease2 = cache.acquire(file1)) {
+                assertNotSame(lease1.channel(), lease2.channel());
+                assertTrue(lease2.channel().isOpen());
+            }
+            lease1.close();
+        }
+    }
+
+    @Test
+    public void closesIdleChannels() throws Exception {
+        try (ChannelCache cache = new ChannelCache(10, 0)) {
+            FileChannel channel1;
+            try (ChannelCache.Lease lease = cache.acquire(file1)) {
+                channel1 = lease.channel();
+            }
+            Thread.sleep(5);
+            cache.acquire(file2).close();
+            assertFalse(channel1.isOpen());
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package doss.local;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 import org.junit.Test;
@@ -21,4 +26,55 @@ public class ConfigTest extends DOSSTest {
             assertEquals("SHA1", blobStore.getPreferredAlgorithm());
         }
     }
+
+    @Test
+    public void masterAreaPackingLimits() throws Exception {
+        Path confFile = folder.newFile().toPath();
+        Files.write(confFile, ("[area.staging]\nfs=staging\n\n"
+                + "[fs.staging]\npath=/staging\n\n"
+                + "[area.master]\nfs=master1\nmax_container_size=512M\n"
+                + "max_container_blobs=1000\ndirect_threshold = 2 G\n\n"
+                + "[fs.master1]\npath=/master1\n\n"
+                + "[config]\nalgorithms=MD5,SHA1\n").getBytes(StandardCharsets.UTF_8));
+        Config config = new Config(confFile);
+        assertEquals(512L * 1024 * 1024, config.maxContainerSize);
+        assertEquals(1000, config.maxContainerBlobs);
+        assertEquals(2L * 1024 * 1024 * 1024, config.directThreshold);
+    }
+
+    @Test
+    public void emptyNegativeOrOverflowingSizesAreRejected() throws Exception {
+        for (String size : new String[] { "", "-1", "-2G", "9999999999T",
+                "9223372036854775807K" }) {
+            Path confFile = folder.newFile().toPath();
+            Files.write(confFile, ("[area.staging]\nfs=staging\n\n"
+                    + "[fs.staging]\npath=/staging\n\n"
+                    + "[area.master]\nfs=master1\nmax_container_size=" + size + "\n\n"
+                    + "[fs.master1]\npath=/master1\n\n"
+                    + "[config]\nalgorithms=MD5,SHA1\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                new Config(confFile);
+                fail("accepted max_container_size=" + size);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("max_container_size"));
+            }
+        }
+    }
+
+    @Test
+    public void packingLimitsDefaultToUnlimited() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        assertEquals(10L * 1024 * 1024 * 1024, blobStore.maxContainerSize);
+        assertEquals(Integer.MAX_VALUE, blobStore.maxContainerBlobs);
+        assertEquals(Long.MAX_VALUE, blobStore.directThreshold);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void packingLimitsOnlyApplyToMasterArea() throws Exception {
+        Path confFile = folder.newFile().toPath();
+        Files.write(confFile, ("[area.staging]\nfs=staging\nmax_container_size=1G\n\n"
+                + "[fs.staging]\npath=/staging\n\n"
+                + "[config]\nalgorithms=MD5,SHA1\n").getBytes(StandardCharsets.UTF_8));
+        new Config(confFile);
+    }
 }
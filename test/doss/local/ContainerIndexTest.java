@@ -0,0 +1,122 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import doss.Blob;
+import doss.BlobTx;
+import doss.DOSSTest;
+
+public class ContainerIndexTest extends DOSSTest {
+
+    @Test
+    public void archiverWritesAnIndexMatchingTheTar() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = putBlobs();
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+
+        for (Path fsRoot : blobStore.masterRoots) {
+            Path tarPath = blobStore.tarPath(fsRoot, containerId);
+            ContainerIndex index = ContainerIndex.read(ContainerIndex.pathFor(tarPath));
+            assertEquals(containerId, index.containerId);
+            assertEquals(blobIds.size(), index.entries.size());
+            for (int i = 0; i < blobIds.size(); i++) {
+                ContainerIndex.Entry entry = index.entries.get(i);
+                assertEquals((long) blobIds.get(i), entry.blobId);
+                assertEquals((long) db.locateBlob(entry.blobId).offset(), entry.offset);
+                assertEquals(blobStore.get(entry.blobId).size(), entry.size);
+                assertEquals(db.getDigest(entry.blobId, "sha1"), entry.digest);
+            }
+
+            // listing from the index gives the same answer as walking the headers
+            List<String> fromIndex = list(containerId, tarPath);
+            Files.move(ContainerIndex.pathFor(tarPath), tarPath.resolveSibling("moved"));
+            assertEquals(list(containerId, tarPath), fromIndex);
+            Files.move(tarPath.resolveSibling("moved"), ContainerIndex.pathFor(tarPath));
+        }
+
+        final List<String> problems = new ArrayList<>();
+        new Fsck(blobStore) {
+            @Override
+            void report(Path file, String message) {
+                problems.add(file + " " + message);
+            }
+        }.run();
+        assertEquals(new ArrayList<String>(), problems);
+    }
+
+    @Test
+    public void truncatedIndexFallsBackToTheHeaders() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = putBlobs();
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+        Path tarPath = blobStore.tarPath(blobStore.masterRoots.get(0), containerId);
+        Path indexPath = ContainerIndex.pathFor(tarPath);
+        byte[] index = Files.readAllBytes(indexPath);
+        Files.write(indexPath, Arrays.copyOf(index, index.length - 10));
+
+        List<String> listed = list(containerId, tarPath);
+        assertEquals(blobIds.size(), listed.size());
+        for (int i = 0; i < blobIds.size(); i++) {
+            assertTrue(listed.get(i).startsWith(blobIds.get(i) + "@"));
+        }
+    }
+
+    @Test
+    public void offsetsCanBeRebuiltFromTheIndex() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        List<Long> blobIds = putBlobs();
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+        List<Long> offsets = new ArrayList<>();
+        for (long blobId : blobIds) {
+            offsets.add(db.locateBlob(blobId).offset());
+            db.setBlobOffset(blobId, 0);
+        }
+
+        assertEquals(blobIds.size(), new Admin(blobStore).rebuildBlobOffsets(containerId));
+        for (int i = 0; i < blobIds.size(); i++) {
+            assertEquals(offsets.get(i), db.locateBlob(blobIds.get(i)).offset());
+            assertEquals(TEST_STRING, slurp(blobStore.get(blobIds.get(i))));
+        }
+    }
+
+    private List<Long> putBlobs() throws Exception {
+        List<Long> blobIds = new ArrayList<>();
+        try (BlobTx tx = blobStore.begin()) {
+            for (int i = 0; i < 3; i++) {
+                blobIds.add(tx.put(TEST_BYTES).id());
+            }
+            tx.commit();
+        }
+        return blobIds;
+    }
+
+    private static List<String> list(long containerId, Path tarPath) throws Exception {
+        List<String> blobs = new ArrayList<>();
+        try (TarContainer tar = new TarContainer(containerId, tarPath, FileChannel.open(tarPath,
+                StandardOpenOption.READ))) {
+            for (Blob blob : tar) {
+                blobs.add(blob.id() + "@" + ((TarBlob) blob).offset() + "+" + blob.size() + " "
+                        + blob.created().toMillis());
+                assertTrue(blob.verify().isEmpty());
+            }
+        }
+        return blobs;
+    }
+}
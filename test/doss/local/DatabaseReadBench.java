@@ -0,0 +1,74 @@
+package doss.local;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Measures blob location lookup throughput with several reader threads sharing
+ * one Database, comparing a single connection against a pool.
+ *
+ * Usage: DatabaseReadBench [threads] [blob-count]
+ */
+public class DatabaseReadBench {
+    static final int LOOKUPS = 200000;
+
+    public static void main(String args[]) throws Exception {
+        int nthreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int nblobs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        Path dbPath = Files.createTempDirectory("dbreadbench");
+
+        try {
+            try (Database db = Database.open(dbPath, 1)) {
+                db.migrate();
+                long containerId = db.createContainer();
+                for (int i = 0; i < nblobs; i++) {
+                    db.insertBlob(i, containerId, i * 512L);
+                }
+            }
+            for (int i = 0; i < 5; i++) {
+                bench(dbPath, nthreads, nblobs, 1);
+                bench(dbPath, nthreads, nblobs, nthreads);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dbPath.toFile());
+        }
+    }
+
+    private static void bench(Path dbPath, int nthreads, final int nblobs, int poolSize)
+            throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(nthreads);
+        try (final Database db = Database.open(dbPath, poolSize)) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < nthreads; t++) {
+                final Random random = new Random(t);
+                final int lookups = LOOKUPS / nthreads;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < lookups; i++) {
+                            if (db.locateBlob(random.nextInt(nblobs)) == null) {
+                                throw new IllegalStateException("missing blob");
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            long start = System.currentTimeMillis();
+            threadPool.invokeAll(tasks);
+            long end = System.currentTimeMillis();
+            System.out.println("pool " + poolSize + ": " + LOOKUPS + " lookups with "
+                    + nthreads + " threads in " + (end - start) + "ms");
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+}
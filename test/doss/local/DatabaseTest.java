@@ -3,8 +3,13 @@ package doss.local;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Date;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -37,7 +42,11 @@ public class DatabaseTest {
 
     @After
     public void tearDown() throws Exception {
+        // on-demand handles are only held open for the duration of a call
+        // or transaction so getHandle() must be used within one
+        db.begin();
         db.getHandle().execute("DROP ALL OBJECTS");
+        db.commit();
     }
 
     @Test
@@ -97,6 +106,59 @@ public class DatabaseTest {
         assertEquals("test3", db.getDigest(2, "sha1"));
     }
 
+    @Test
+    public void concurrentCallersGetTheirOwnConnections() throws Exception {
+        db.begin();
+        try {
+            final Connection mine = db.getHandle().getConnection();
+            final Connection[] theirs = new Connection[1];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    db.begin();
+                    theirs[0] = db.getHandle().getConnection();
+                    // must not block on the connection held by the other thread
+                    db.createContainer();
+                    db.commit();
+                }
+            };
+            thread.start();
+            thread.join(10000);
+            assertNotNull(theirs[0]);
+            assertNotSame(mine, theirs[0]);
+        } finally {
+            db.commit();
+        }
+    }
+
+    @Test
+    public void containersDueForAuditOldestFirst() {
+        long recent = archivedContainer();
+        long old = archivedContainer();
+        long never = archivedContainer();
+        long older = archivedContainer();
+        long now = System.currentTimeMillis();
+        db.insertAuditResult(recent, "sha1", new Date(now), true);
+        db.insertAuditResult(old, "sha1", new Date(now - 20000), true);
+        db.insertAuditResult(older, "sha1", new Date(now - 30000), false);
+
+        Date cutoff = new Date(now - 10000);
+        assertEquals(Arrays.asList(never, older, old),
+                db.findContainersDueForAudit(Database.CNT_ARCHIVED, cutoff, 10));
+        assertEquals(Arrays.asList(never, older),
+                db.findContainersDueForAudit(Database.CNT_ARCHIVED, cutoff, 2));
+
+        db.insertAuditResult(never, "sha1", new Date(now), true);
+        assertEquals(Arrays.asList(older, old),
+                db.findContainersDueForAudit(Database.CNT_ARCHIVED, cutoff, 10));
+    }
+
+    private long archivedContainer() {
+        long containerId = db.createContainer();
+        db.updateContainerState(containerId, Database.CNT_ARCHIVED);
+        return containerId;
+    }
+
     @Test(expected = UnableToExecuteStatementException.class)
     public void testDuplicateDigests() {
         db.insertDigest(1, "sha1", "test");
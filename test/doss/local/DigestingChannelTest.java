@@ -0,0 +1,58 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import doss.Blob;
+import doss.BlobTx;
+import doss.DOSSTest;
+
+public class DigestingChannelTest extends DOSSTest {
+
+    @Test
+    public void digestsWhatWasWritten() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> digests;
+        try (DigestingChannel channel = new DigestingChannel(Channels.newChannel(out),
+                Arrays.asList("MD5", "SHA-1"))) {
+            ByteBuffer buffer = ByteBuffer.wrap(TEST_BYTES);
+            buffer.limit(5);
+            channel.write(buffer);
+            buffer.limit(TEST_BYTES.length);
+            channel.write(buffer);
+            digests = channel.digests();
+        }
+        assertEquals(TEST_STRING, new String(out.toByteArray(), "UTF-8"));
+        assertEquals(2, digests.size());
+        assertEquals("91613d0dc2a18f748962a86024ac620a0cc10919", digests.get("sha1"));
+        assertEquals(32, digests.get("md5").length());
+    }
+
+    @Test
+    public void digestsAreRecordedAtPutTime() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        Blob blob;
+        try (BlobTx tx = blobStore.begin()) {
+            blob = tx.put(TEST_BYTES);
+            tx.commit();
+        }
+        assertEquals("91613d0dc2a18f748962a86024ac620a0cc10919", db.getDigest(blob.id(), "sha1"));
+        assertEquals(2, db.getDigests(blob.id()).size());
+
+        try (BlobTx tx = blobStore.begin()) {
+            blob = tx.putAll(Arrays.asList(blobStore.stagingPath(blob.id()))).get(0);
+            assertEquals("91613d0dc2a18f748962a86024ac620a0cc10919", db.getDigest(blob.id(), "sha1"));
+            tx.rollback();
+        }
+        assertTrue(db.getDigests(blob.id()).isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import doss.BlobTx;
+import doss.DOSSTest;
+
+public class FsckTest extends DOSSTest {
+
+    @Test
+    public void findsProblemsAndResumesFromCheckpoint() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        // keep blobs out of the top-level shard
+        db.increaseBlobIdSequence(1500000);
+        try (BlobTx tx = blobStore.begin()) {
+            tx.put(TEST_BYTES);
+            tx.put(TEST_BYTES);
+            tx.commit();
+        }
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+
+        long missing, misplaced, copied;
+        try (BlobTx tx = blobStore.begin()) {
+            missing = tx.put(TEST_BYTES).id();
+            misplaced = tx.put(TEST_BYTES).id();
+            copied = tx.put(TEST_BYTES).id();
+            tx.commit();
+        }
+        Path data = blobStore.stagingRoot.resolve("data");
+
+        Files.delete(blobStore.stagingPath(missing));
+        Path moved = data.resolve("nla.blob-" + misplaced);
+        Files.move(blobStore.stagingPath(misplaced), moved);
+        // below a directory too high to be a shard of its own
+        Path copy = data.resolve("5/1/nla.blob-" + copied);
+        Files.createDirectories(copy.getParent());
+        Files.copy(blobStore.stagingPath(copied), copy);
+        // no blob has this id, but it's in a shard with some that do
+        Path orphan = blobStore.stagingPath(copied + 1);
+        Files.createDirectories(orphan.getParent());
+        Files.write(orphan, TEST_BYTES);
+        Path orphanTar = blobStore.tarPath(master1Root, 999);
+        Files.copy(blobStore.tarPath(master1Root, containerId), orphanTar);
+        Path unexpected = master2Root.resolve("data/README");
+        Files.write(unexpected, TEST_BYTES);
+
+        assertEquals(new HashSet<>(Arrays.asList(
+                blobStore.stagingPath(missing) + " missing or unreadable",
+                blobStore.stagingPath(misplaced) + " missing or unreadable",
+                moved + " in wrong location. Should be " + blobStore.stagingPath(misplaced),
+                copy + " in wrong location. Should be " + blobStore.stagingPath(copied),
+                orphan + " orphaned file",
+                orphanTar + " orphaned container",
+                unexpected + " unexpected file")), fsck(blobStore));
+        // same again fetching rows in small chunks
+        assertEquals(fsck(blobStore), fsck(blobStore, 100, false));
+
+        // shards finished before an interruption are skipped
+        Path checkpoint = blobStore.stagingRoot.resolve(Fsck.CHECKPOINT_FILE);
+        StringBuilder finished = new StringBuilder();
+        for (Path file : Arrays.asList(blobStore.stagingPath(missing),
+                blobStore.stagingPath(misplaced), orphan)) {
+            // a shard is named for the parent of the leaf directories it covers
+            finished.append(blobStore.stagingRoot + " "
+                    + data.relativize(file.getParent().getParent()) + "\n");
+        }
+        Files.write(checkpoint, finished.toString().getBytes("UTF-8"));
+        assertEquals(new HashSet<>(Arrays.asList(
+                moved + " in wrong location. Should be " + blobStore.stagingPath(misplaced),
+                copy + " in wrong location. Should be " + blobStore.stagingPath(copied),
+                orphanTar + " orphaned container",
+                unexpected + " unexpected file")), fsck(blobStore, 10000, true));
+        assertFalse(Files.exists(checkpoint));
+
+        // but only when asked to resume
+        Files.write(checkpoint, finished.toString().getBytes("UTF-8"));
+        assertEquals(7, fsck(blobStore).size());
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void reportsMissingTarWhenItsIndexIsLeft() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        Database db = blobStore.db;
+        try (BlobTx tx = blobStore.begin()) {
+            tx.put(TEST_BYTES);
+            tx.commit();
+        }
+        new Archiver(blobStore).run(true);
+        long containerId = db.findContainersByState(Database.CNT_ARCHIVED).get(0);
+        Path tar = blobStore.tarPath(master2Root, containerId);
+        Files.delete(tar);
+        assertTrue(Files.exists(ContainerIndex.pathFor(tar)));
+
+        assertEquals(new HashSet<>(Arrays.asList(tar + " missing or unreadable")),
+                fsck(blobStore));
+    }
+
+    private static Set<String> fsck(LocalBlobStore blobStore) throws Exception {
+        return fsck(blobStore, 10000, false);
+    }
+
+    private static Set<String> fsck(LocalBlobStore blobStore, long rowChunk, boolean resume)
+            throws Exception {
+        final Set<String> problems = new HashSet<>();
+        new Fsck(blobStore) {
+            @Override
+            void report(Path file, String message) {
+                problems.add(file + " " + message);
+            }
+        }.setRowChunk(rowChunk).setResume(resume).run();
+        return problems;
+    }
+}
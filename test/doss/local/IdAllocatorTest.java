@@ -0,0 +1,96 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IdAllocatorTest {
+    Database db;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        db = Database.open(folder.newFolder().toPath()).migrate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void reservesIdsInGrowingBlocks() {
+        IdAllocator allocator = new IdAllocator(db, 1024);
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            ids.add(allocator.next());
+        }
+        assertEquals(100000, ids.size());
+        // 16 + 32 + ... + 1024 covers the first 2032, then blocks of 1024
+        assertEquals(7 + (100000 - 2032 + 1023) / 1024, allocator.refills());
+    }
+
+    @Test
+    public void bulkAllocationUsesUpTheCurrentBlockFirst() {
+        IdAllocator allocator = new IdAllocator(db, 1024);
+        long first = allocator.next();
+        List<Long> ids = allocator.next(5000);
+        assertEquals(5000, ids.size());
+        assertEquals(first + 1, (long) ids.get(0));
+        assertEquals(2, allocator.refills());
+        Set<Long> unique = new HashSet<>(ids);
+        unique.add(first);
+        unique.add(allocator.next());
+        assertEquals(5002, unique.size());
+    }
+
+    @Test
+    public void idsAreUniqueAcrossAllocators() throws Exception {
+        // as if two processes were sharing the database
+        final IdAllocator allocator1 = new IdAllocator(db, 64);
+        final IdAllocator allocator2 = new IdAllocator(db, 64);
+        final long plainId = db.nextId();
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<List<Long>>> tasks = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final IdAllocator allocator = t % 2 == 0 ? allocator1 : allocator2;
+                tasks.add(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() {
+                        List<Long> ids = new ArrayList<>();
+                        for (int i = 0; i < 1000; i++) {
+                            ids.add(allocator.next());
+                        }
+                        return ids;
+                    }
+                });
+            }
+            Set<Long> ids = new HashSet<>();
+            ids.add(plainId);
+            for (Future<List<Long>> future : threadPool.invokeAll(tasks)) {
+                ids.addAll(future.get());
+            }
+            assertEquals(4001, ids.size());
+            assertEquals((Long) plainId, Collections.min(ids));
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+}
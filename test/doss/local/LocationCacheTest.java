@@ -0,0 +1,90 @@
+package doss.local;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import doss.Blob;
+import doss.BlobTx;
+import doss.DOSSTest;
+
+public class LocationCacheTest extends DOSSTest {
+
+    @Test
+    public void cachesOnlyArchivedLocations() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        LocationCache cache = blobStore.locationCache;
+        long blobId;
+        try (BlobTx tx = blobStore.begin()) {
+            blobId = tx.put(TEST_BYTES).id();
+            tx.commit();
+        }
+
+        // staging blobs are never cached
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.size());
+
+        new Archiver(blobStore).run(true);
+
+        long misses = cache.misses();
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.hits());
+
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(2, cache.hits());
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    @Test
+    public void cachesLegacyLocations() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        LocationCache cache = blobStore.locationCache;
+        long blobId = blobStore.getLegacy(makeTempFile(TEST_STRING)).id();
+        assertEquals(1, cache.size());
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId)));
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void batchLookupsUseAndFillCache() throws Exception {
+        LocalBlobStore blobStore = (LocalBlobStore) this.blobStore;
+        LocationCache cache = blobStore.locationCache;
+        long blobId1, blobId2;
+        try (BlobTx tx = blobStore.begin()) {
+            blobId1 = tx.put(TEST_BYTES).id();
+            blobId2 = tx.put(TEST_BYTES).id();
+            tx.commit();
+        }
+        new Archiver(blobStore).run(true);
+
+        long hits = cache.hits();
+        assertEquals(TEST_STRING, slurp(blobStore.get(blobId1)));
+        List<Blob> blobs = blobStore.getAll(blobId1, blobId2);
+        assertEquals(TEST_STRING, slurp(blobs.get(0)));
+        assertEquals(TEST_STRING, slurp(blobs.get(1)));
+        assertEquals(hits + 1, cache.hits());
+        assertEquals(2, cache.size());
+
+        blobStore.getAll(blobId2, blobId1);
+        assertEquals(hits + 3, cache.hits());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LocationCache cache = new LocationCache(2);
+        cache.put(new BlobLocation(1, 10L, 0L, Database.CNT_ARCHIVED, 100L));
+        cache.put(new BlobLocation(2, 10L, 512L, Database.CNT_ARCHIVED, 100L));
+        cache.get(1);
+        cache.put(new BlobLocation(3, 10L, 1024L, Database.CNT_ARCHIVED, 100L));
+        assertEquals(2, cache.size());
+        assertEquals(null, cache.get(2));
+        assertEquals((Long) 0L, cache.get(1).offset());
+    }
+}
@@ -0,0 +1,78 @@
+package doss.local;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import doss.Blob;
+import doss.core.Writables;
+
+/**
+ * Compares random small blob reads from a container via positional channel
+ * reads and via a memory mapping.
+ *
+ * Usage: MappedReadBench [tar-path] [blob-count]
+ */
+public class MappedReadBench {
+    static final int READS = 200000;
+    static ByteBuffer b = ByteBuffer.allocate(8192);
+
+    public static void main(String args[]) throws IOException {
+        Path tarPath = args.length > 0 ? Paths.get(args[0])
+                : Files.createTempFile("mappedreadbench", ".tar");
+        int nblobs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        long[] offsets = writeContainer(tarPath, nblobs);
+
+        for (int i = 0; i < 10; i++) {
+            bench("channel", tarPath, offsets, new ChannelCache(10, 60000, false));
+            bench("mmap", tarPath, offsets, new ChannelCache(10, 60000, true));
+        }
+        if (args.length == 0) {
+            Files.delete(tarPath);
+        }
+    }
+
+    private static long[] writeContainer(Path tarPath, int nblobs) throws IOException {
+        Random random = new Random(0);
+        long[] offsets = new long[nblobs];
+        Files.deleteIfExists(tarPath);
+        try (TarContainer tar = new TarContainer(1, tarPath,
+                FileChannel.open(tarPath, CREATE, READ, WRITE))) {
+            for (int i = 0; i < nblobs; i++) {
+                byte[] data = new byte[random.nextInt(8000) + 100];
+                random.nextBytes(data);
+                offsets[i] = tar.put(i, Writables.wrap(data));
+            }
+        }
+        return offsets;
+    }
+
+    private static void bench(String name, Path tarPath, long[] offsets, ChannelCache cache)
+            throws IOException {
+        Random random = new Random(1);
+        long bytes = 0;
+        long start = System.currentTimeMillis();
+        try (TarContainer tar = new TarContainer(1, tarPath, cache)) {
+            for (int i = 0; i < READS; i++) {
+                Blob blob = tar.get(offsets[random.nextInt(offsets.length)]);
+                try (SeekableByteChannel channel = blob.openChannel()) {
+                    b.clear();
+                    bytes += channel.read(b);
+                }
+            }
+        }
+        cache.close();
+        long end = System.currentTimeMillis();
+        System.out.println(name + " " + READS + " reads (" + bytes + " bytes) in "
+                + (end - start) + "ms");
+    }
+}
@@ -0,0 +1,72 @@
+package doss.local;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedSegmentsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    Path testPath;
+    byte[] content = new byte[10000];
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(content);
+        testPath = folder.newFile().toPath();
+        Files.write(testPath, content);
+    }
+
+    @Test
+    public void readsAcrossSegmentBoundaries() throws Exception {
+        try (FileChannel channel = FileChannel.open(testPath, READ)) {
+            MappedSegments segments = new MappedSegments(channel, 1000);
+            assertEquals(content.length, segments.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(2500);
+            assertEquals(2500, segments.read(buffer, 990));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(content, 990, 3490), buffer.array()));
+
+            buffer.clear();
+            assertEquals(10, segments.read(buffer, content.length - 10));
+            assertEquals(-1, segments.read(buffer, content.length));
+        }
+    }
+
+    @Test
+    public void subChannelReadsFromMapping() throws Exception {
+        try (FileChannel channel = FileChannel.open(testPath, READ)) {
+            MappedSegments segments = new MappedSegments(channel, 1000);
+            try (SubChannel sub = new SubChannel(segments, 1500, 4000, channel)) {
+                sub.position(100);
+                ByteBuffer buffer = ByteBuffer.allocate(5000);
+                assertEquals(3900, sub.read(buffer));
+                buffer.flip();
+                byte[] actual = new byte[buffer.remaining()];
+                buffer.get(actual);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1600, 5500), actual));
+                assertEquals(4000, sub.position());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRangesPastEnd() throws Exception {
+        try (FileChannel channel = FileChannel.open(testPath, READ)) {
+            new SubChannel(new MappedSegments(channel), 9000, 2000, channel);
+        }
+    }
+}
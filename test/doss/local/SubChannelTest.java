@@ -3,8 +3,12 @@ package doss.local;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
@@ -20,6 +24,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import doss.core.Writables;
+
 @SuppressWarnings("unused")
 public class SubChannelTest {
 
@@ -69,7 +75,7 @@ public class SubChannelTest {
             buffer.clear();
             // can not read any more, all bytes are read
             int r3 = channel1.read(buffer);
-            assertEquals("No more bytes to read, bytest read should be 0", 0,
+            assertEquals("No more bytes to read, should be end of stream", -1,
                     r3);
 
         }
@@ -104,7 +110,7 @@ public class SubChannelTest {
             buffer.clear();
             // can not read any more, all bytes are read
             int r3 = channel1.read(buffer);
-            assertEquals("No more bytes to read, bytest read should be 0", 0,
+            assertEquals("No more bytes to read, should be end of stream", -1,
                     r3);
 
         }
@@ -247,6 +253,54 @@ public class SubChannelTest {
         }
     }
 
+    @Test
+    public void transfersOnlyItsRange() throws Exception {
+        try (FileChannel fc = FileChannel.open(testPath, StandardOpenOption.READ)) {
+            assertEquals("nd all the men and women ", transfer(new SubChannel(fc, 25, 25)));
+            assertEquals("nd all the men and women ",
+                    transfer(new SubChannel(new MappedSegments(fc, 16), 25, 25, fc)));
+        }
+        try (SeekableByteChannel sbt = Files.newByteChannel(testPath,
+                EnumSet.of(StandardOpenOption.READ))) {
+            SubChannel sub = new SubChannel(sbt, 25, 25);
+            sub.position(15);
+            assertEquals("and women ", transfer(sub));
+        }
+    }
+
+    @Test
+    public void readsToEndOfStream() throws Exception {
+        try (FileChannel fc = FileChannel.open(testPath, StandardOpenOption.READ)) {
+            assertEquals("nd all the men and women ", readAll(new SubChannel(fc, 25, 25)));
+            assertEquals("nd all the men and women ",
+                    readAll(new SubChannel(new MappedSegments(fc, 16), 25, 25, fc)));
+        }
+        try (SeekableByteChannel sbt = Files.newByteChannel(testPath,
+                EnumSet.of(StandardOpenOption.READ))) {
+            SubChannel sub = new SubChannel(sbt, 25, 25);
+            assertEquals("nd all the men and women ", readAll(sub));
+            assertEquals(-1, sub.read(ByteBuffer.allocate(10)));
+        }
+    }
+
+    private static String readAll(SubChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = Channels.newInputStream(channel);
+        byte[] buf = new byte[7];
+        for (int n; (n = in.read(buf)) != -1;) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static String transfer(SubChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(channel.size() - channel.position(),
+                Writables.copy(channel, Channels.newChannel(out)));
+        assertEquals(-1, channel.transferTo(Long.MAX_VALUE, Channels.newChannel(out)));
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
     private static void writeFileBytes(String filename, String content) {
         try {
             Files.write(FileSystems.getDefault().getPath(filename),
@@ -10,15 +10,26 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.junit.Before;
@@ -101,6 +112,102 @@ public class TarContainerTest {
         tarContainer.close();
     }
 
+    @Test
+    public void fanOutWritesIdenticalReplicas() throws Exception {
+        Path tar1 = testPath.resolve("fanout1.tar");
+        Path tar2 = testPath.resolve("fanout2.tar");
+        Path single = testPath.resolve("single.tar");
+        TarFanOutWriter.Record record1, record2;
+        String containerDigest;
+        try (FileChannel channel1 = FileChannel.open(tar1, CREATE, WRITE);
+                FileChannel channel2 = FileChannel.open(tar2, CREATE, WRITE)) {
+            try (TarFanOutWriter writer = new TarFanOutWriter(3,
+                    Arrays.asList(channel1, channel2), "SHA1")) {
+                record1 = writer.put(1000L, Writables.wrap("file 1 content"));
+                record2 = writer.put(2000L, Writables.wrap("file2 content"));
+                containerDigest = writer.finish();
+            }
+        }
+        try (TarContainer tarContainer = new TarContainer(3, single,
+                FileChannel.open(single, CREATE, READ, WRITE))) {
+            tarContainer.put(1000L, Writables.wrap("file 1 content"));
+            tarContainer.put(2000L, Writables.wrap("file2 content"));
+        }
+
+        // same bytes as writing one record at a time
+        assertTrue(Arrays.equals(Files.readAllBytes(single), Files.readAllBytes(tar1)));
+        assertTrue(Arrays.equals(Files.readAllBytes(single), Files.readAllBytes(tar2)));
+        assertEquals(0, record1.offset);
+        assertEquals(1024, record2.offset);
+        assertEquals(13, record2.size);
+        try (FileChannel channel = FileChannel.open(tar2, READ)) {
+            assertEquals(Digests.calculate("SHA1", channel), containerDigest);
+        }
+        try (TarContainer tarContainer = new TarContainer(3, tar1, FileChannel.open(tar1, READ))) {
+            assertEquals(Digests.calculate("SHA1", tarContainer.get(record2.offset)),
+                    record2.digest);
+        }
+    }
+
+    @Test
+    public void digesterChecksRecordsInOnePass() throws Exception {
+        Path tar = testPath.resolve("digester.tar");
+        List<TarFanOutWriter.Record> records = new ArrayList<>();
+        String containerDigest;
+        try (FileChannel channel = FileChannel.open(tar, CREATE, WRITE)) {
+            try (TarFanOutWriter writer = new TarFanOutWriter(5, Arrays.asList(channel), "SHA1")) {
+                Random random = new Random(42);
+                for (int size : new int[] { 0, 1, 511, 512, 513, 70000 }) {
+                    byte[] bytes = new byte[size];
+                    random.nextBytes(bytes);
+                    records.add(writer.put(records.size() + 100, Writables.wrap(bytes)));
+                }
+                containerDigest = writer.finish();
+            }
+        }
+
+        // feed it in awkward chunks so headers and records straddle reads
+        byte[] bytes = Files.readAllBytes(tar);
+        TarDigester digester = new TarDigester("SHA1");
+        for (int pos = 0; pos < bytes.length; pos += 333) {
+            digester.update(ByteBuffer.wrap(bytes, pos, Math.min(333, bytes.length - pos)));
+        }
+        assertTrue(digester.isComplete());
+        assertEquals(containerDigest, digester.containerDigest());
+        assertEquals(records.size(), digester.records().size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(i + 100, digester.records().get(i).blobId);
+            assertEquals(records.get(i).digest, digester.records().get(i).digest);
+        }
+
+        try (FileChannel channel = FileChannel.open(tar, WRITE)) {
+            channel.truncate(records.get(5).offset + 1000);
+        }
+        try (FileChannel channel = FileChannel.open(tar, READ)) {
+            digester = TarDigester.digest("SHA1", channel);
+        }
+        assertFalse(digester.isComplete());
+        assertEquals(5, digester.records().size());
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void fanOutReportsReplicaWriteErrors() throws Exception {
+        Path tar1 = testPath.resolve("good.tar");
+        Path tar2 = testPath.resolve("bad.tar");
+        try (FileChannel channel1 = FileChannel.open(tar1, CREATE, WRITE);
+                FileChannel channel2 = FileChannel.open(tar2, CREATE, WRITE)) {
+            channel2.close();
+            try (TarFanOutWriter writer = new TarFanOutWriter(4,
+                    Arrays.asList(channel1, channel2), "SHA1")) {
+                byte[] data = new byte[64 * 1024];
+                for (int i = 0; i < TarFanOutWriter.QUEUE_DEPTH; i++) {
+                    writer.put(i, Writables.wrap(data));
+                }
+                writer.finish();
+            }
+        }
+    }
+
     @Test
     public void append() throws Exception {
         Path testTar = testPath.resolve("testappend" + getTimestamp() + ".tar");
@@ -139,6 +246,77 @@ public class TarContainerTest {
 
     }
 
+    @Test
+    public void concurrentReadersShareOneChannel() throws Exception {
+        final int nblobs = 50;
+        final int nthreads = 16;
+        Path testTar = testPath.resolve("testconcurrent" + getTimestamp() + ".tar");
+        final long[] offsets = new long[nblobs];
+        final List<byte[]> contents = new ArrayList<>();
+        try (TarContainer tarContainer = new TarContainer(1, testTar,
+                FileChannel.open(testTar, CREATE, READ, WRITE))) {
+            Random random = new Random(42);
+            for (int i = 0; i < nblobs; i++) {
+                byte[] bytes = new byte[random.nextInt(20000) + 1];
+                random.nextBytes(bytes);
+                contents.add(bytes);
+                offsets[i] = tarContainer.put(i, Writables.wrap(bytes));
+            }
+        }
+
+        final ChannelCache cache = new ChannelCache(1, 60000);
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try {
+            final Path tar = testTar;
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < nthreads; t++) {
+                final long seed = t;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random(seed);
+                        for (int n = 0; n < 200; n++) {
+                            int i = random.nextInt(nblobs);
+                            byte[] expected = contents.get(i);
+                            try (TarContainer container = new TarContainer(1, tar, cache)) {
+                                Blob blob = container.get(offsets[i]);
+                                assertEquals(i, blob.id());
+                                assertEquals(expected.length, blob.size());
+                                try (SeekableByteChannel channel = blob.openChannel()) {
+                                    // read from a random position in small chunks
+                                    int start = random.nextInt(expected.length);
+                                    channel.position(start);
+                                    ByteBuffer buffer = ByteBuffer.allocate(expected.length - start);
+                                    ByteBuffer chunk = ByteBuffer.allocate(97);
+                                    while (buffer.hasRemaining()) {
+                                        chunk.clear();
+                                        if (chunk.remaining() > buffer.remaining()) {
+                                            chunk.limit(buffer.remaining());
+                                        }
+                                        channel.read(chunk);
+                                        chunk.flip();
+                                        buffer.put(chunk);
+                                    }
+                                    assertTrue(Arrays.equals(
+                                            Arrays.copyOfRange(expected, start, expected.length),
+                                            buffer.array()));
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            assertEquals(1, cache.openChannels());
+        } finally {
+            pool.shutdown();
+            cache.close();
+        }
+    }
+
     public String getTimestamp() {
         Date date = new Date();
         SimpleDateFormat sdf = new SimpleDateFormat("MMddyyyyhmmssa");
@@ -0,0 +1,46 @@
+package doss.local;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.Test;
+
+public class ThrottleTest {
+
+    @Test
+    public void limitsRate() throws Exception {
+        Throttle throttle = new Throttle(100);
+        long start = System.nanoTime();
+        // the first second's worth is banked, the next 20 should take ~200ms
+        for (int i = 0; i < 120; i++) {
+            throttle.acquire(1);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 150);
+    }
+
+    @Test
+    public void zeroIsUnlimited() throws Exception {
+        Throttle throttle = new Throttle(0);
+        long start = System.nanoTime();
+        throttle.acquire(Long.MAX_VALUE);
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+    }
+
+    @Test
+    public void wrappedChannelsTakeAPermitPerByte() throws Exception {
+        Throttle throttle = new Throttle(1000);
+        ReadableByteChannel channel = throttle.wrap(Channels.newChannel(new ByteArrayInputStream(
+                new byte[1200])));
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(2000);
+        while (channel.read(buffer) > 0) {
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 150);
+    }
+}
@@ -10,6 +10,7 @@ import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -21,6 +22,7 @@ import doss.Blob;
 import doss.BlobStore;
 import doss.BlobTx;
 import doss.DOSSTest;
+import doss.NoSuchBlobException;
 import doss.Writable;
 import doss.local.TempBlobStore;
 
@@ -62,6 +64,24 @@ public class RemoteBlobStoreTest {
         assertNotNull(blob.created());
     }
 
+    @Test(timeout = 1000)
+    public void testStatMany() throws Exception {
+        long id1 = DOSSTest.writeTempBlob(localStore, s).id();
+        long id2 = DOSSTest.writeTempBlob(localStore, s + s).id();
+        List<Blob> blobs = remoteStore.getAll(id2, id1);
+        assertEquals(2, blobs.size());
+        assertEquals(id2, blobs.get(0).id());
+        assertEquals(s.getBytes(UTF8).length * 2, blobs.get(0).size());
+        assertEquals(id1, blobs.get(1).id());
+        assertEquals(s.getBytes(UTF8).length, blobs.get(1).size());
+    }
+
+    @Test(timeout = 1000, expected = NoSuchBlobException.class)
+    public void testStatManyMissing() throws Exception {
+        long id = DOSSTest.writeTempBlob(localStore, s).id();
+        remoteStore.getAll(id, 999);
+    }
+
     @Test(timeout = 1000)
     public void testStatLegacy() throws Exception {
         Path tmp = Files.createTempFile("doss-test", ".tmp");